@@ -0,0 +1,63 @@
+package Kaleidoscope;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The VectorStepper advances a whole FigureStore with the Vector API, as many
+ * figures at a time as fit in a vector register. Every lane does exactly what
+ * FigureStore.step(int) does to one figure: add the delta, and if that goes
+ * past a wall, turn the delta around and add it again.
+ *
+ * This class needs the jdk.incubator.vector module, so it is kept out of src
+ * and compiled on its own, after the rest. The FigureStore only loads it when
+ * it was built and that module is there, and steps one figure at a time
+ * otherwise.
+ *
+ * @author Martha Trevino
+ */
+final class VectorStepper implements FigureStore.Stepper {
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+	@Override
+	public void step(FigureStore figures) {
+		int count = figures.count;
+		int bound = SPECIES.loopBound(count);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			step(figures.x, figures.xDelta, figures.xLimit, i);
+			step(figures.y, figures.yDelta, figures.yLimit, i);
+		}
+		for (; i < count; i++) {
+			figures.step(i);
+		}
+	}
+
+	/**
+	 * Advances one vector of figures along one axis.
+	 *
+	 * @param position
+	 *            The positions along the axis
+	 * @param delta
+	 *            The deltas along the axis
+	 * @param limit
+	 *            The walls along the axis
+	 * @param i
+	 *            The slot of the first figure
+	 */
+	private static void step(int[] position, int[] delta, int[] limit, int i) {
+		IntVector p = IntVector.fromArray(SPECIES, position, i);
+		IntVector d = IntVector.fromArray(SPECIES, delta, i);
+		IntVector l = IntVector.fromArray(SPECIES, limit, i);
+		p = p.add(d);
+		VectorMask<Integer> bounce = p.compare(VectorOperators.LT,
+				l.neg()).or(p.compare(VectorOperators.GE, l));
+		d = d.blend(d.neg(), bounce);
+		p = p.add(d, bounce);
+		p.intoArray(position, i);
+		d.intoArray(delta, i);
+	}
+}
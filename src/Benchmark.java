@@ -0,0 +1,610 @@
+package Kaleidoscope;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The Benchmark times the hot paths of the kaleidoscope: stepping (and
+ * colliding) the figures, whole ticks with and without a Recording, blending
+ * two ticks for a frame in between, working out the outlines of their
+ * reflections, and drawing whole frames into an offscreen image with Java2D,
+ * with the software rasterizer or from cached sprites. Every combination of
+ * figure count, reflection count and shape mix is measured in turn, after a
+ * warm-up, from the same seed, so runs can be compared with each other.
+ *
+ * <pre>
+ * java -cp classes Kaleidoscope.Benchmark --bench step,frame --figures 60,10000 --reflections 8,24
+ * </pre>
+ *
+ * Shape mixes are separated by semicolons, such as "triangle;ball,diamond".
+ *
+ * With --check the Benchmark times nothing, and checks instead that a fast
+ * path gives the same results as the slow one it replaced:
+ *
+ * <pre>
+ * java -cp classes Kaleidoscope.Benchmark --check reflect --figures 1000
+ * </pre>
+ *
+ * "reflect" turns the vertices of every figure, over a few seeded ticks, with
+ * the rotation table and with the polar math the View used before it, for
+ * every number of reflections. They may only differ by one pixel, and only
+ * where the polar math truncated a whole number that had been rounded down
+ * by a hair, such as 352.99999999999994 for 353.
+ *
+ * "step" steps two copies of the same figures over CHECK_STEPS steps, one
+ * with the VectorStepper and one a figure at a time with step(int), changing
+ * their speeds and walls as it goes, and checks that they stay the same.
+ *
+ * "dirty" draws CHECK_FRAMES frames into an image that keeps the frame
+ * before, so that only the dirty tiles are drawn again, and into another
+ * one whole, and checks that they are the same, pixel for pixel. It needs
+ * few enough figures for the frames to be drawn in part, and fails if none
+ * was:
+ *
+ * <pre>
+ * java -cp classes Kaleidoscope.Benchmark --check dirty --figures 5,20,60 --reflections 4
+ * </pre>
+ *
+ * @author Martha Trevino
+ */
+public class Benchmark {
+
+	static final String[] BENCHMARKS = { "step", "reflect", "frame", "dirty",
+			"raster", "sprites", "trails", "collide", "tick", "record", "blend" };
+
+	static final String[] CHECKS = { "reflect", "step", "dirty" };
+
+	/** Ticks the figures are checked over. */
+	static final int CHECK_TICKS = 50;
+	/** Steps the steppers are compared over. */
+	static final int CHECK_STEPS = 2000;
+	/** Frames the dirty tiles are compared over. */
+	static final int CHECK_FRAMES = 300;
+
+	int warmups = 5;
+	int iterations = 10;
+	long iterationMillis = 500;
+
+	/** Keeps the results of the measured code alive. */
+	long sink;
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args
+	 *            Options, see usage().
+	 */
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		Benchmark benchmark = new Benchmark();
+		HeadlessRenderer setup = new HeadlessRenderer();
+		setup.seed = 42;
+		String[] benches = BENCHMARKS;
+		String[] checks = null;
+		int[] figureCounts = { 60, 1000, 10000, 100000, 1000000 };
+		int[] reflectionCounts = { 4, 8, 12, 16, 24 };
+		String[] mixes = { "triangle", "ball,rectangle,roundRect",
+				"triangle,diamond",
+				"ball,rectangle,triangle,roundRect,diamond" };
+		if (args.length % 2 != 0) {
+			usage();
+			return;
+		}
+		for (int i = 0; i < args.length; i += 2) {
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("--bench")) {
+				benches = value.split(",");
+			} else if (option.equals("--check")) {
+				checks = value.split(",");
+			} else if (option.equals("--figures")) {
+				figureCounts = parseInts(value);
+			} else if (option.equals("--reflections")) {
+				reflectionCounts = parseInts(value);
+			} else if (option.equals("--shapes")) {
+				mixes = value.split(";");
+			} else if (option.equals("--warmups")) {
+				benchmark.warmups = Integer.parseInt(value);
+			} else if (option.equals("--iterations")) {
+				benchmark.iterations = Integer.parseInt(value);
+			} else if (option.equals("--time")) {
+				benchmark.iterationMillis = Long.parseLong(value);
+			} else if (!setup.setOption(option, value)) {
+				usage();
+				return;
+			}
+		}
+
+		if (checks != null) {
+			boolean passed = true;
+			for (String check : checks) {
+				for (int figures : figureCounts) {
+					setup.figureCount = Math.min(figures, 10000);
+					passed &= benchmark.check(check, setup, reflectionCounts);
+				}
+			}
+			System.exit(passed ? 0 : 1);
+		}
+
+		System.out.printf("%-8s %9s %5s %-44s %12s %10s%n", "bench",
+				"figures", "refl", "shapes", "ms/op", "error");
+		for (String bench : benches) {
+			for (int figures : figureCounts) {
+				setup.figureCount = figures;
+				for (String mix : mixes) {
+					setup.shapeMask = HeadlessRenderer.parseShapes(mix);
+					if (simulationOnly(bench)) {
+						// Reflections do not matter to the simulation
+						benchmark.report(bench, figures, 0, mix,
+								benchmark.run(bench, setup));
+						continue;
+					}
+					for (int reflections : reflectionCounts) {
+						setup.reflections = reflections;
+						benchmark.report(bench, figures, reflections, mix,
+								benchmark.run(bench, setup));
+					}
+				}
+			}
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Options:"
+				+ " --bench step,reflect,frame,dirty,raster,sprites,trails,"
+				+ "collide,tick,record,blend"
+				+ " --figures 60,1000 --reflections 4,8"
+				+ " --shapes triangle;ball,diamond --warmups N"
+				+ " --iterations N --time MILLIS --width W --height H"
+				+ " --seed N --budget MS");
+		System.err.println("   or: --check reflect,step,dirty --figures 1000"
+				+ " --reflections 4,8");
+	}
+
+	/**
+	 * @return True for the benchmarks that draw nothing
+	 */
+	private static boolean simulationOnly(String bench) {
+		return bench.equals("step") || bench.equals("collide")
+				|| bench.equals("tick") || bench.equals("record")
+				|| bench.equals("blend");
+	}
+
+	private static int[] parseInts(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * Measures one benchmark with one setup.
+	 *
+	 * @param bench
+	 *            One of BENCHMARKS
+	 * @param setup
+	 *            The size, seed, figures and so on to use
+	 * @return The time of each measured iteration, in milliseconds per
+	 *         operation
+	 */
+	double[] run(String bench, HeadlessRenderer setup) throws IOException {
+		setup.raster = bench.equals("raster");
+		setup.sprites = bench.equals("sprites");
+		setup.trails = bench.equals("trails");
+		setup.collisions = bench.equals("collide");
+		SimulationClock clock = setup.createClock();
+		View view = setup.createView(clock);
+		Recording recording = null;
+		if (bench.equals("record")) {
+			File file = File.createTempFile("kaleidoscope", ".rec");
+			file.deleteOnExit();
+			recording = new Recording(file, Recording.DEFAULT_MEGABYTES << 20,
+					setup.figureCount);
+			clock.setRecording(recording);
+		}
+		Operation operation = bench.equals("step")
+				|| bench.equals("collide") ? new Step(clock.getFigures())
+				: bench.equals("tick") || bench.equals("record") ? new Tick(
+						clock) : bench.equals("blend") ? new Blend(clock)
+						: bench.equals("reflect") ? new Reflect(clock,
+						view) : new Frame(clock, view, setup.width,
+						setup.height, bench.equals("dirty"));
+		try {
+			for (int i = 0; i < warmups; i++) {
+				iteration(operation);
+			}
+			double[] results = new double[iterations];
+			for (int i = 0; i < iterations; i++) {
+				results[i] = iteration(operation);
+			}
+			return results;
+		} finally {
+			if (recording != null) {
+				recording.close();
+				recording.getFile().delete();
+			}
+		}
+	}
+
+	/**
+	 * Checks that a fast path gives the same results as the slow one it
+	 * replaced, and prints what it found.
+	 *
+	 * @param check
+	 *            One of CHECKS
+	 * @param setup
+	 *            The size, seed, figures and so on to use
+	 * @param reflectionCounts
+	 *            The numbers of reflections to check with
+	 * @return True if it passed
+	 */
+	boolean check(String check, HeadlessRenderer setup, int[] reflectionCounts) {
+		if (check.equals("reflect")) {
+			boolean passed = true;
+			for (int reflections : reflectionCounts) {
+				passed &= checkReflect(setup, reflections);
+			}
+			return passed;
+		}
+		if (check.equals("step")) {
+			return checkStep(setup);
+		}
+		if (check.equals("dirty")) {
+			boolean passed = true;
+			for (int reflections : reflectionCounts) {
+				setup.reflections = reflections;
+				passed &= checkDirty(setup);
+			}
+			return passed;
+		}
+		System.err.println("Unknown check: " + check);
+		return false;
+	}
+
+	/**
+	 * Turns every vertex of every figure with the rotation table of the View,
+	 * and with the polar math it used before, over CHECK_TICKS ticks. A
+	 * vertex may only be one pixel off, where the polar math truncated a
+	 * whole number that it had worked out a hair too small.
+	 *
+	 * @return True if no vertex was off by more than that
+	 */
+	private static boolean checkReflect(HeadlessRenderer setup, int reflections) {
+		SimulationClock clock = setup.createClock();
+		FigureStore figures = clock.getFigures();
+		View view = setup.createView(clock);
+		view.reflections = reflections;
+		view.updateRotations();
+		int halfWidth = setup.width / 2;
+		int halfHeight = setup.height / 2;
+		double angleOffset = 2 * Math.PI / reflections;
+		long vertices = 0;
+		long wholeNumbers = 0;
+		long wrong = 0;
+		for (int t = 0; t < CHECK_TICKS; t++) {
+			clock.tick();
+			for (int i = 0; i < figures.count; i++) {
+				ShapeKind shape = ShapeKind.get(figures.kind[i]);
+				int size = figures.size[i];
+				for (int v = -1; v < shape.xs.length; v++) {
+					// The position itself, then every vertex of the outline
+					double x = figures.x[i] + (v < 0 ? 0 : shape.xs[v] * size);
+					double y = figures.y[i] + (v < 0 ? 0 : shape.ys[v] * size);
+					double radius = Math.pow(x * x + y * y, 0.5);
+					double angle = Math.atan(x / y);
+					if (y < 0) {
+						angle += Math.PI;
+					}
+					for (int n = 1; n <= reflections; n++) {
+						int k = view.rotation(n);
+						double polarX = radius * Math.sin(angle + n * angleOffset);
+						double polarY = radius * Math.cos(angle + n * angleOffset);
+						int dx = view.getNewX(x, y, k) - ((int) polarX + halfWidth);
+						int dy = view.getNewY(x, y, k) - ((int) polarY + halfHeight);
+						vertices++;
+						if (dx == 0 && dy == 0) {
+							continue;
+						}
+						if (Math.abs(dx) <= 1 && Math.abs(dy) <= 1
+								&& (dx == 0 || nearlyWhole(polarX))
+								&& (dy == 0 || nearlyWhole(polarY))) {
+							wholeNumbers++;
+						} else {
+							wrong++;
+						}
+					}
+				}
+			}
+		}
+		System.out.println(String.format(Locale.ROOT,
+				"reflect  %9d %5d  %d vertices, %d a pixel off at a whole"
+						+ " number, %d wrong: %s", setup.figureCount,
+				reflections, vertices, wholeNumbers, wrong,
+				wrong == 0 ? "passed" : "FAILED"));
+		return wrong == 0;
+	}
+
+	/**
+	 * Draws the same figures over CHECK_FRAMES frames twice: into an image
+	 * that keeps the frame before, so that only the dirty tiles are drawn
+	 * again, and into one that is drawn whole every frame. The two must be
+	 * the same, pixel for pixel. So few figures are needed for frames to be
+	 * drawn in part, such as 5 or 20 at 4 or 8 reflections, that the check
+	 * fails if none was: it would have compared nothing but whole frames.
+	 *
+	 * @return True if some frames were drawn in part and no pixel ever
+	 *         differed
+	 */
+	private static boolean checkDirty(HeadlessRenderer setup) {
+		SimulationClock keptClock = setup.createClock();
+		SimulationClock wholeClock = setup.createClock();
+		View keptView = setup.createView(keptClock);
+		View wholeView = setup.createView(wholeClock);
+		BufferedImage keptImage = new BufferedImage(setup.width, setup.height,
+				BufferedImage.TYPE_INT_RGB);
+		BufferedImage wholeImage = new BufferedImage(setup.width,
+				setup.height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D kept = keptImage.createGraphics();
+		Graphics2D whole = wholeImage.createGraphics();
+		int[] keptPixels = ((DataBufferInt) keptImage.getRaster()
+				.getDataBuffer()).getData();
+		int[] wholePixels = ((DataBufferInt) wholeImage.getRaster()
+				.getDataBuffer()).getData();
+		int partial = 0;
+		int wrongFrames = 0;
+		long wrongPixels = 0;
+		for (int f = 0; f < CHECK_FRAMES; f++) {
+			keptClock.tick();
+			wholeClock.tick();
+			keptView.renderFrame(kept, true);
+			wholeView.renderFrame(whole, false);
+			if (keptView.wasPartial()) {
+				partial++;
+			}
+			int differ = 0;
+			for (int i = 0; i < keptPixels.length; i++) {
+				if (keptPixels[i] != wholePixels[i]) {
+					differ++;
+				}
+			}
+			if (differ > 0) {
+				wrongFrames++;
+				wrongPixels += differ;
+			}
+		}
+		kept.dispose();
+		whole.dispose();
+		boolean passed = wrongFrames == 0 && partial > 0;
+		System.out.println(String.format(Locale.ROOT,
+				"dirty    %9d %5d  %d frames, %d drawn in part, %d pixels"
+						+ " differ in %d frames: %s", setup.figureCount,
+				setup.reflections, CHECK_FRAMES, partial, wrongPixels,
+				wrongFrames, passed ? "passed" : wrongFrames > 0 ? "FAILED"
+						: "FAILED, not exercised: every frame was drawn"
+								+ " whole"));
+		return passed;
+	}
+
+	/**
+	 * Steps two copies of the same figures, one with the VectorStepper and
+	 * one with step(int), a figure at a time, and compares them after every
+	 * step. Every 100 steps both are given a new speed and new walls, some of
+	 * them closer in than the figures are.
+	 *
+	 * @return True if they never differed, or if there is no VectorStepper
+	 *         to check
+	 */
+	private static boolean checkStep(HeadlessRenderer setup) {
+		if (FigureStore.STEPPER == null) {
+			System.out.println("step     " + setup.figureCount
+					+ " not checked: the Vector API is not available");
+			return true;
+		}
+		FigureStore vector = setup.createClock().getFigures();
+		FigureStore scalar = setup.createClock().getFigures();
+		Random changes = new Random(setup.seed);
+		for (int s = 0; s < CHECK_STEPS; s++) {
+			if (s % 100 == 0) {
+				int percent = changes.nextInt(201);
+				int width = 100 + changes.nextInt(setup.width * 2);
+				int height = 100 + changes.nextInt(setup.height * 2);
+				vector.setSpeed(percent);
+				scalar.setSpeed(percent);
+				vector.setLimits(width, height);
+				scalar.setLimits(width, height);
+			}
+			FigureStore.STEPPER.step(vector);
+			for (int i = 0; i < scalar.count; i++) {
+				scalar.step(i);
+			}
+			int n = scalar.count;
+			if (!Arrays.equals(vector.x, 0, n, scalar.x, 0, n)
+					|| !Arrays.equals(vector.y, 0, n, scalar.y, 0, n)
+					|| !Arrays.equals(vector.xDelta, 0, n, scalar.xDelta, 0, n)
+					|| !Arrays.equals(vector.yDelta, 0, n, scalar.yDelta, 0, n)) {
+				System.out.println("step     " + setup.figureCount
+						+ " FAILED: the figures differ after step " + (s + 1));
+				return false;
+			}
+		}
+		System.out.println("step     " + setup.figureCount + " "
+				+ CHECK_STEPS + " steps with " + FigureStore.STEPPER
+						.getClass().getSimpleName() + " and step(int): passed");
+		return true;
+	}
+
+	/**
+	 * @return True if a number is a whole number but for rounding errors
+	 */
+	private static boolean nearlyWhole(double value) {
+		return Math.abs(value - Math.rint(value)) <= 1e-9 * Math.max(1,
+				Math.abs(value));
+	}
+
+	/**
+	 * Runs an operation over and over for iterationMillis, at least once.
+	 *
+	 * @return Milliseconds per operation
+	 */
+	private double iteration(Operation operation) {
+		long start = System.nanoTime();
+		long end = start + iterationMillis * 1000000;
+		long now;
+		int ops = 0;
+		do {
+			sink += operation.run();
+			ops++;
+			now = System.nanoTime();
+		} while (now < end);
+		return (now - start) / 1e6 / ops;
+	}
+
+	/**
+	 * Prints the mean time, and the half width of a 99.9% confidence
+	 * interval, as JMH does.
+	 */
+	private void report(String bench, int figures, int reflections,
+			String mix, double[] results) {
+		double mean = 0;
+		for (double r : results) {
+			mean += r;
+		}
+		mean /= results.length;
+		double variance = 0;
+		for (double r : results) {
+			variance += (r - mean) * (r - mean);
+		}
+		double error = results.length > 1 ? 3.29 * Math.sqrt(variance
+				/ (results.length - 1) / results.length) : Double.NaN;
+		System.out.println(String.format(Locale.ROOT,
+				"%-8s %9d %5s %-44s %12.4f %10.4f", bench, figures,
+				reflections == 0 ? "-" : Integer.toString(reflections), mix,
+				mean, error));
+	}
+
+	/**
+	 * Something to be timed.
+	 */
+	interface Operation {
+		/**
+		 * Does the work once.
+		 *
+		 * @return Any value derived from the work, so it cannot be skipped
+		 */
+		long run();
+	}
+
+	/** Advances every figure once. */
+	static class Step implements Operation {
+		private final FigureStore figures;
+
+		Step(FigureStore figures) {
+			this.figures = figures;
+		}
+
+		@Override
+		public long run() {
+			figures.step();
+			return figures.x[0];
+		}
+	}
+
+	/** Ticks once: steps, publishes and, if there is one, records. */
+	static class Tick implements Operation {
+		private final SimulationClock clock;
+
+		Tick(SimulationClock clock) {
+			this.clock = clock;
+		}
+
+		@Override
+		public long run() {
+			clock.tick();
+			return clock.getTicks();
+		}
+	}
+
+	/**
+	 * Blends the last two ticks, a little further along every time, as the
+	 * View does for every frame drawn between them.
+	 */
+	static class Blend implements Operation {
+		private final FigureState before;
+		private final FigureState after;
+		private final FigureState blended = new FigureState();
+		private int frame;
+
+		Blend(SimulationClock clock) {
+			StateExchange exchange = clock.getExchange();
+			clock.tick();
+			exchange.take();
+			clock.tick();
+			after = exchange.take();
+			before = exchange.previous();
+		}
+
+		@Override
+		public long run() {
+			frame = (frame + 1) % 16;
+			blended.interpolate(before, after, frame / 16f);
+			return blended.x[0];
+		}
+	}
+
+	/**
+	 * Ticks once and works out the outlines of all the reflections of the
+	 * figures, without filling them.
+	 */
+	static class Reflect implements Operation {
+		private final SimulationClock clock;
+		private final View view;
+
+		Reflect(SimulationClock clock, View view) {
+			this.clock = clock;
+			this.view = view;
+		}
+
+		@Override
+		public long run() {
+			clock.tick();
+			return view.reflectFigures();
+		}
+	}
+
+	/**
+	 * Ticks once and draws a whole frame, or only what has changed since the
+	 * frame before.
+	 */
+	static class Frame implements Operation {
+		private final SimulationClock clock;
+		private final View view;
+		private final Graphics2D g;
+		private final BufferedImage image;
+		private final boolean kept;
+
+		Frame(SimulationClock clock, View view, int width, int height,
+				boolean kept) {
+			this.clock = clock;
+			this.view = view;
+			this.kept = kept;
+			image = new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_RGB);
+			g = image.createGraphics();
+		}
+
+		@Override
+		public long run() {
+			clock.tick();
+			view.renderFrame(g, kept);
+			return image.getRGB(image.getWidth() / 2, image.getHeight() / 3);
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package Kaleidoscope;
+
+import java.util.Arrays;
+
+/**
+ * The Collider makes the figures of a FigureStore bounce off one another.
+ * Every figure is taken to be a circle as wide as its size. After each step
+ * the figures are sorted into a uniform grid of cells as big as the largest
+ * figure, through a spatial hash, so each figure only has to be compared
+ * with the figures in its own and the eight cells around it. The grid is
+ * built again from scratch every tick, in time proportional to the number of
+ * figures.
+ *
+ * The hash numbers the cells row by row across the figures, modulo the
+ * number of buckets, so that cells next to each other are next to each other
+ * in memory too. When there are no more cells than buckets, which is usual
+ * since the figures stay between their walls, no two cells share a bucket.
+ *
+ * Two figures that overlap and are coming closer swap their speeds along the
+ * axis on which they are farthest apart, as two equal balls would along a
+ * wall. Speeds stay whole numbers and no speed is ever lost or made up. A
+ * figure bounces at most once per tick.
+ *
+ * In a crowd, where a cell holds more than PER_CELL figures, a figure only
+ * looks at PER_CELL of them, starting somewhere else every tick, so the work
+ * per figure stays bounded however many figures are on top of each other.
+ * Pairs that are missed in one tick are found in the next ones.
+ *
+ * @author Martha Trevino
+ */
+class Collider {
+
+	/** Width and height of a cell, enough for the largest figure. */
+	static final int CELL = FigureStore.MAX_SIZE;
+
+	/** The most figures of one cell a figure is compared with per tick. */
+	static final int PER_CELL = 16;
+
+	/** The bucket of the cell of each figure. */
+	private int[] bucketOf = new int[0];
+	/** The figures in bucket b are items[start[b]] to items[start[b + 1] - 1]. */
+	private int[] start = new int[0];
+	private int[] items = new int[0];
+	/** The position, size and deltas of each item, so a cell is read in order. */
+	private int[] itemX = new int[0];
+	private int[] itemY = new int[0];
+	private int[] itemSize = new int[0];
+	private int[] itemXDelta = new int[0];
+	private int[] itemYDelta = new int[0];
+	/** True for each item whose figure has bounced this tick. */
+	private boolean[] bounced = new boolean[0];
+
+	/** The first cell of the grid, its width in cells, and the hash mask. */
+	private int left;
+	private int top;
+	private int columns;
+	private int mask;
+
+	/** Moves where figures start looking in a crowded cell. */
+	private int ticks;
+	/** The buckets around the cell being looked at. */
+	private final int[] nearFirst = new int[9];
+	private final int[] nearLength = new int[9];
+
+	/** The number of pairs of figures compared, and bounced, last tick. */
+	long compared;
+	int bounces;
+
+	/**
+	 * Bounces every pair of figures that overlap and are coming closer.
+	 *
+	 * @param figures
+	 *            The figures, just stepped
+	 */
+	void collide(FigureStore figures) {
+		build(figures, figures.count);
+		compared = 0;
+		bounces = 0;
+		int shift = ++ticks * 0x9E3779B9;
+		for (int b = 0; b <= mask; b++) {
+			int own = start[b];
+			int lastX = Integer.MIN_VALUE;
+			int lastY = Integer.MIN_VALUE;
+			for (int a = own; a < start[b + 1]; a++) {
+				if (bounced[a]) {
+					continue;
+				}
+				int xa = itemX[a];
+				int ya = itemY[a];
+				int sa = itemSize[a];
+				int cx = Math.floorDiv(xa, CELL);
+				int cy = Math.floorDiv(ya, CELL);
+				if (cx != lastX || cy != lastY) {
+					neighbors(cx, cy);
+					lastX = cx;
+					lastY = cy;
+				}
+				// Figures next to each other in a cell look at figures next
+				// to each other in a crowded cell, so it is read in order
+				search: for (int m = 0; m < 9; m++) {
+					int first = nearFirst[m];
+					int length = nearLength[m];
+					int k = length > PER_CELL ? Math.floorMod(a - own + shift,
+							length) : 0;
+					for (int look = Math.min(length, PER_CELL); look > 0; look--, k++) {
+						if (k == length) {
+							k = 0;
+						}
+						int c = first + k;
+						if (c == a || bounced[c]) {
+							continue;
+						}
+						compared++;
+						long ex = itemX[c] - xa;
+						long ey = itemY[c] - ya;
+						long reach = itemSize[c] + sa;
+						if (4 * (ex * ex + ey * ey) < reach * reach
+								&& bounce(figures, a, c, ex, ey)) {
+							break search;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the buckets of a cell and the eight around it.
+	 */
+	private void neighbors(int cx, int cy) {
+		int m = 0;
+		for (int dy = -1; dy <= 1; dy++) {
+			for (int dx = -1; dx <= 1; dx++, m++) {
+				int b = hash(cx + dx, cy + dy);
+				nearFirst[m] = start[b];
+				nearLength[m] = start[b + 1] - start[b];
+			}
+		}
+	}
+
+	/**
+	 * Sorts the figures into their buckets, in slot order within a bucket.
+	 */
+	private void build(FigureStore figures, int n) {
+		if (bucketOf.length < n) {
+			int capacity = figures.x.length;
+			bucketOf = new int[capacity];
+			items = new int[capacity];
+			itemX = new int[capacity];
+			itemY = new int[capacity];
+			itemSize = new int[capacity];
+			itemXDelta = new int[capacity];
+			itemYDelta = new int[capacity];
+			bounced = new boolean[capacity];
+		}
+		int[] x = figures.x;
+		int[] y = figures.y;
+		int minX = 0;
+		int maxX = 0;
+		int minY = 0;
+		int maxY = 0;
+		for (int i = 0; i < n; i++) {
+			minX = Math.min(minX, x[i]);
+			maxX = Math.max(maxX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		left = Math.floorDiv(minX, CELL);
+		top = Math.floorDiv(minY, CELL);
+		columns = Math.floorDiv(maxX, CELL) - left + 1;
+		long cells = (long) columns * (Math.floorDiv(maxY, CELL) - top + 1);
+		// No more buckets than cells, nor than about two per figure
+		long wanted = Math.max(Math.min(cells, 2L * n), 1);
+		int buckets = (int) Math.min(Long.highestOneBit(2 * wanted - 1),
+				1 << 30);
+		if (start.length != buckets + 1) {
+			start = new int[buckets + 1];
+		}
+		mask = buckets - 1;
+		Arrays.fill(start, 0);
+		Arrays.fill(bounced, 0, n, false);
+		for (int i = 0; i < n; i++) {
+			int b = hash(Math.floorDiv(x[i], CELL), Math.floorDiv(y[i], CELL));
+			bucketOf[i] = b;
+			start[b + 1]++;
+		}
+		for (int b = 0; b < buckets; b++) {
+			start[b + 1] += start[b];
+		}
+		// start[b] is used as the fill pointer, then shifted back
+		int[] size = figures.size;
+		int[] xDelta = figures.xDelta;
+		int[] yDelta = figures.yDelta;
+		for (int i = 0; i < n; i++) {
+			int k = start[bucketOf[i]]++;
+			items[k] = i;
+			itemX[k] = x[i];
+			itemY[k] = y[i];
+			itemSize[k] = size[i];
+			itemXDelta[k] = xDelta[i];
+			itemYDelta[k] = yDelta[i];
+		}
+		for (int b = buckets; b > 0; b--) {
+			start[b] = start[b - 1];
+		}
+		start[0] = 0;
+	}
+
+	/**
+	 * @return The bucket of a cell: the cells numbered row by row, modulo the
+	 *         number of buckets. Cells just outside the grid wrap around to
+	 *         other rows, which only costs a few needless comparisons.
+	 */
+	private int hash(int cx, int cy) {
+		return (int) ((long) (cy - top) * columns + cx - left) & mask;
+	}
+
+	/**
+	 * Swaps the speeds of the figures of two items along the axis on which
+	 * they are farthest apart, if they are coming closer along it.
+	 *
+	 * @return True if they bounced
+	 */
+	private boolean bounce(FigureStore figures, int a, int c, long ex, long ey) {
+		int[] delta;
+		int[] speed;
+		if (Math.abs(ex) >= Math.abs(ey)) {
+			if ((long) (itemXDelta[c] - itemXDelta[a]) * ex >= 0) {
+				return false;
+			}
+			delta = figures.xDelta;
+			speed = figures.speedX;
+		} else {
+			if ((long) (itemYDelta[c] - itemYDelta[a]) * ey >= 0) {
+				return false;
+			}
+			delta = figures.yDelta;
+			speed = figures.speedY;
+		}
+		// Neither item is looked at again this tick, so only the figures change
+		int i = items[a];
+		int j = items[c];
+		int d = delta[i];
+		delta[i] = delta[j];
+		delta[j] = d;
+		int s = speed[i];
+		speed[i] = speed[j];
+		speed[j] = s;
+		bounced[a] = true;
+		bounced[c] = true;
+		bounces++;
+		return true;
+	}
+}
@@ -0,0 +1,466 @@
+package Kaleidoscope;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The ContactSheet renders every combination of a sweep of reflection counts,
+ * shape mixes, speeds and seeds, without a window, and tiles the pictures
+ * into contact sheets, so settings can be compared side by side. Each tile is
+ * numbered, and index.csv says what the number of each tile stands for.
+ *
+ * <pre>
+ * java -cp classes Kaleidoscope.ContactSheet --reflections 4,8,12,16,24 --shapes all --speeds 50,100,200 --seeds 1-20 --out sheets
+ * </pre>
+ *
+ * Shape mixes are separated by semicolons, such as "triangle;ball,diamond";
+ * "all" stands for every mix of the shape kinds there are. Seeds can be given
+ * as a range, such as 1-20.
+ *
+ * The tiles of a sheet are rendered in parallel on a work-stealing pool with
+ * a thread per core, every one from a FigureStore, clock and View of its own,
+ * ticked from the start and drawn once. A sheet is written out on another
+ * thread while the next one is rendered into the other of two sheet images,
+ * so memory use does not depend on the size of the sweep: the combinations
+ * are worked out from the number of each tile, never listed.
+ *
+ * @author Martha Trevino
+ */
+public class ContactSheet {
+
+	/** The options shared with the HeadlessRenderer, such as the size. */
+	final HeadlessRenderer setup = new HeadlessRenderer();
+
+	int[] reflections = { 4, 8, 12, 16, 24 };
+	int[] shapeMasks = allMixes();
+	int[] speeds = { 100 };
+	long[] seeds = { 1 };
+
+	/** Width of a tile; its height keeps the proportions of the picture. */
+	int tileWidth = 160;
+	int columns = 16;
+	int rows = 16;
+	File out = new File("contact-sheets");
+
+	private static final Font LABEL_FONT = new Font(Font.SANS_SERIF,
+			Font.BOLD, 11);
+
+	/**
+	 * Renders contact sheets of a sweep.
+	 *
+	 * @param args
+	 *            Options, see usage().
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		ContactSheet sheet = new ContactSheet();
+		sheet.setup.ticksPerFrame = 25;
+		sheet.setup.threads = Runtime.getRuntime().availableProcessors();
+		if (args.length % 2 != 0) {
+			usage();
+			return;
+		}
+		for (int i = 0; i < args.length; i += 2) {
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("--reflections")) {
+				sheet.reflections = parseInts(value);
+			} else if (option.equals("--shapes")) {
+				sheet.shapeMasks = value.equals("all") ? allMixes()
+						: parseMixes(value);
+			} else if (option.equals("--speeds")) {
+				sheet.speeds = parseInts(value);
+			} else if (option.equals("--seeds")) {
+				sheet.seeds = parseSeeds(value);
+			} else if (option.equals("--tile")) {
+				sheet.tileWidth = Integer.parseInt(value);
+			} else if (option.equals("--columns")) {
+				sheet.columns = Integer.parseInt(value);
+			} else if (option.equals("--rows")) {
+				sheet.rows = Integer.parseInt(value);
+			} else if (option.equals("--out")) {
+				sheet.out = new File(value);
+			} else if (!sheet.setup.setOption(option, value)) {
+				usage();
+				return;
+			}
+		}
+		long start = System.nanoTime();
+		int sheets = sheet.render();
+		System.out.printf("%d tiles on %d sheets in %.1f s%n", sheet.tiles(),
+				sheets, (System.nanoTime() - start) / 1e9);
+	}
+
+	private static void usage() {
+		System.err.println("Options: --reflections 4,8 --shapes all|"
+				+ "triangle;ball,diamond --speeds 50,100 --seeds 1-20"
+				+ " --tile W --columns N --rows N --out directory"
+				+ " --width W --height H --figures N --ticks N --threads N"
+				+ " --mirror --raster --sprites --indexed --trails"
+				+ " --collisions");
+	}
+
+	/**
+	 * @return The masks of every mix of one or more of the shape kinds
+	 */
+	static int[] allMixes() {
+		int[] masks = new int[(1 << ShapeKind.count()) - 1];
+		for (int i = 0; i < masks.length; i++) {
+			masks[i] = i + 1;
+		}
+		return masks;
+	}
+
+	private static int[] parseMixes(String mixes) {
+		String[] parts = mixes.split(";");
+		int[] masks = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			masks[i] = HeadlessRenderer.parseShapes(parts[i]);
+		}
+		return masks;
+	}
+
+	private static int[] parseInts(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * @param list
+	 *            Seeds and ranges of seeds, such as "1-20,99"
+	 * @return Every seed
+	 */
+	private static long[] parseSeeds(String list) {
+		List<Long> seeds = new ArrayList<Long>();
+		for (String part : list.split(",")) {
+			int dash = part.indexOf('-', 1);
+			if (dash < 0) {
+				seeds.add(Long.valueOf(part.trim()));
+				continue;
+			}
+			long first = Long.parseLong(part.substring(0, dash).trim());
+			long last = Long.parseLong(part.substring(dash + 1).trim());
+			for (long seed = first; seed <= last; seed++) {
+				seeds.add(Long.valueOf(seed));
+			}
+		}
+		long[] values = new long[seeds.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = seeds.get(i).longValue();
+		}
+		return values;
+	}
+
+	/**
+	 * @return The number of combinations in the sweep
+	 */
+	long tiles() {
+		return (long) reflections.length * shapeMasks.length * speeds.length
+				* seeds.length;
+	}
+
+	/**
+	 * Renders every combination, and writes the sheets and the index.
+	 *
+	 * @return The number of sheets written
+	 */
+	public int render() throws IOException, InterruptedException {
+		if (!out.isDirectory() && !out.mkdirs()) {
+			throw new IOException("Cannot create directory " + out);
+		}
+		long tiles = tiles();
+		int perSheet = columns * rows;
+		int sheets = (int) ((tiles + perSheet - 1) / perSheet);
+		int tileHeight = Math.max(tileWidth * setup.height / setup.width, 1);
+		BufferedImage[] images = new BufferedImage[2];
+		List<Future<Void>> written = Arrays.asList(null, null);
+		ForkJoinPool pool = new ForkJoinPool(Math.max(setup.threads, 1));
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		PrintWriter index = new PrintWriter(new File(out, "index.csv"),
+				"UTF-8");
+		try {
+			index.println("tile,sheet,row,column,reflections,shapes,speed,seed");
+			for (int s = 0; s < sheets; s++) {
+				int b = s % 2;
+				if (written.get(b) != null) {
+					written.get(b).get();
+				}
+				long first = (long) s * perSheet;
+				int count = (int) Math.min(perSheet, tiles - first);
+				int used = (count + columns - 1) / columns;
+				if (images[b] == null || images[b].getHeight() != used * tileHeight) {
+					images[b] = new BufferedImage(columns * tileWidth, used
+							* tileHeight, BufferedImage.TYPE_INT_RGB);
+				} else {
+					clear(images[b]);
+				}
+				pool.invoke(new TileTask(images[b], tileHeight, first, 0, count));
+				written.set(b, writer.submit(new WriteSheet(images[b],
+						new File(out, String.format("sheet-%04d.png", s)),
+						index, s, first, count)));
+			}
+			for (Future<Void> w : written) {
+				if (w != null) {
+					w.get();
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			writer.shutdown();
+			pool.shutdown();
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+			index.close();
+		}
+		if (index.checkError()) {
+			throw new IOException("Could not write the index");
+		}
+		return sheets;
+	}
+
+	private static void clear(BufferedImage image) {
+		Arrays.fill(((DataBufferInt) image.getRaster()
+				.getDataBuffer()).getData(), 0);
+	}
+
+	/**
+	 * @return The reflections of a tile
+	 */
+	int reflectionsOf(long tile) {
+		return reflections[(int) (tile % reflections.length)];
+	}
+
+	/**
+	 * @return The shape mask of a tile
+	 */
+	int shapesOf(long tile) {
+		return shapeMasks[(int) (tile / reflections.length % shapeMasks.length)];
+	}
+
+	/**
+	 * @return The speed of a tile, in percent
+	 */
+	int speedOf(long tile) {
+		return speeds[(int) (tile / reflections.length / shapeMasks.length % speeds.length)];
+	}
+
+	/**
+	 * @return The seed of a tile
+	 */
+	long seedOf(long tile) {
+		return seeds[(int) (tile / reflections.length / shapeMasks.length / speeds.length)];
+	}
+
+	/**
+	 * @return The names of the shape kinds of a mask, joined by '+'
+	 */
+	static String shapeNames(int mask) {
+		StringBuilder names = new StringBuilder();
+		for (int k = 0; k < ShapeKind.count(); k++) {
+			if ((mask & 1 << k) != 0) {
+				if (names.length() > 0) {
+					names.append('+');
+				}
+				names.append(ShapeKind.get(k).name);
+			}
+		}
+		return names.toString();
+	}
+
+	/**
+	 * Renders the picture of one tile at full size.
+	 *
+	 * @param tile
+	 *            The number of the tile
+	 * @param frame
+	 *            The image to draw the picture into
+	 */
+	void renderTile(long tile, BufferedImage frame) {
+		SimulationClock clock = setup.createClock(seedOf(tile));
+		clock.setSpeed(speedOf(tile));
+		for (int t = 0; t < setup.ticksPerFrame; t++) {
+			clock.tick();
+		}
+		View view = setup.createView(clock);
+		view.setReflections(reflectionsOf(tile));
+		view.setShapeMask(shapesOf(tile));
+		Graphics2D g = frame.createGraphics();
+		try {
+			view.renderFrame(g, false);
+		} finally {
+			g.dispose();
+		}
+	}
+
+	/**
+	 * Scales a picture down into a tile, halving it while it is more than
+	 * twice as big so that no figure is skipped over, and numbers it.
+	 */
+	private static void shrink(BufferedImage frame, BufferedImage tile,
+			long number) {
+		BufferedImage from = frame;
+		while (from.getWidth() > 2 * tile.getWidth()) {
+			BufferedImage half = new BufferedImage(from.getWidth() / 2,
+					Math.max(from.getHeight() / 2, 1),
+					BufferedImage.TYPE_INT_RGB);
+			draw(from, half);
+			from = half;
+		}
+		draw(from, tile);
+		Graphics2D g = tile.createGraphics();
+		try {
+			g.setFont(LABEL_FONT);
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+					RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			String label = Long.toString(number);
+			int y = tile.getHeight() - 4;
+			g.setColor(Color.BLACK);
+			g.drawString(label, 4, y + 1);
+			g.setColor(Color.WHITE);
+			g.drawString(label, 3, y);
+		} finally {
+			g.dispose();
+		}
+	}
+
+	private static void draw(BufferedImage from, BufferedImage to) {
+		Graphics2D g = to.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+					RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(from, 0, 0, to.getWidth(), to.getHeight(), null);
+		} finally {
+			g.dispose();
+		}
+	}
+
+	/**
+	 * The full size picture and the tile each worker thread draws into, so
+	 * they are made once per thread.
+	 */
+	private final ThreadLocal<BufferedImage[]> scratch = new ThreadLocal<BufferedImage[]>();
+
+	/**
+	 * Renders some of the tiles of a sheet, splitting them in halves for other
+	 * workers to steal until there is one tile left to render.
+	 */
+	@SuppressWarnings("serial")
+	private class TileTask extends RecursiveAction {
+		private final BufferedImage sheet;
+		private final int tileHeight;
+		private final long first;
+		private final int from;
+		private final int to;
+
+		/**
+		 * @param sheet
+		 *            The sheet being rendered
+		 * @param first
+		 *            The number of the first tile of the sheet
+		 * @param from
+		 *            The first tile to render, counted on the sheet
+		 * @param to
+		 *            The tile after the last one to render
+		 */
+		TileTask(BufferedImage sheet, int tileHeight, long first, int from,
+				int to) {
+			this.sheet = sheet;
+			this.tileHeight = tileHeight;
+			this.first = first;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new TileTask(sheet, tileHeight, first, from, middle),
+						new TileTask(sheet, tileHeight, first, middle, to));
+				return;
+			}
+			BufferedImage[] images = scratch.get();
+			if (images == null || images[1].getWidth() != tileWidth
+					|| images[1].getHeight() != tileHeight) {
+				images = new BufferedImage[] {
+						new BufferedImage(setup.width, setup.height,
+								BufferedImage.TYPE_INT_RGB),
+						new BufferedImage(tileWidth, tileHeight,
+								BufferedImage.TYPE_INT_RGB) };
+				scratch.set(images);
+			}
+			renderTile(first + from, images[0]);
+			shrink(images[0], images[1], first + from);
+			// Tiles never overlap, so workers copy into the sheet side by side
+			int[] tile = ((DataBufferInt) images[1].getRaster()
+					.getDataBuffer()).getData();
+			int[] pixels = ((DataBufferInt) sheet.getRaster().getDataBuffer())
+					.getData();
+			int left = from % columns * tileWidth;
+			int top = from / columns * tileHeight;
+			for (int y = 0; y < tileHeight; y++) {
+				System.arraycopy(tile, y * tileWidth, pixels, (top + y)
+						* sheet.getWidth() + left, tileWidth);
+			}
+		}
+	}
+
+	/**
+	 * Writes one sheet as a PNG file, and its tiles to the index.
+	 */
+	private class WriteSheet implements Callable<Void> {
+		private final BufferedImage image;
+		private final File file;
+		private final PrintWriter index;
+		private final int sheet;
+		private final long first;
+		private final int count;
+
+		WriteSheet(BufferedImage image, File file, PrintWriter index,
+				int sheet, long first, int count) {
+			this.image = image;
+			this.file = file;
+			this.index = index;
+			this.sheet = sheet;
+			this.first = first;
+			this.count = count;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			ImageIO.write(image, "png", file);
+			for (int i = 0; i < count; i++) {
+				long tile = first + i;
+				index.printf("%d,%d,%d,%d,%d,%s,%d,%d%n", tile, sheet, i
+						/ columns, i % columns, reflectionsOf(tile),
+						shapeNames(shapesOf(tile)), speedOf(tile),
+						seedOf(tile));
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package Kaleidoscope;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.swing.JCheckBox;
+import javax.swing.JRadioButton;
+import javax.swing.SwingUtilities;
+
+/**
+ * The Control lets JMX clients such as JConsole work a running Kaleidoscope,
+ * for kiosks and other displays nobody can reach the window of. Every change
+ * is made by working the Controller's own buttons, sliders and spinners on
+ * the event dispatch thread, so the window keeps showing the settings and
+ * the figures change exactly as if they had been clicked. The statistics
+ * are read straight from the FrameStats.
+ *
+ * @author Martha Trevino
+ */
+class Control implements ControlMXBean {
+
+	/** The name the Control is registered under. */
+	static final String NAME = "Kaleidoscope:type=Control";
+
+	private final Controller controller;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param controller
+	 *            The Controller whose controls are worked
+	 */
+	Control(Controller controller) {
+		this.controller = controller;
+	}
+
+	/**
+	 * Registers the Control with the platform MBean server, so it can be
+	 * reached locally or over a remote JMX connector.
+	 *
+	 * @throws JMException
+	 *             If it cannot be registered, such as when a Control is
+	 *             registered already
+	 */
+	void register() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName(NAME));
+	}
+
+	/**
+	 * Does something on the event dispatch thread, and waits for it.
+	 *
+	 * @param action
+	 *            What to do
+	 * @return What it returned
+	 */
+	private static <T> T onEventThread(Callable<T> action) {
+		if (SwingUtilities.isEventDispatchThread()) {
+			try {
+				return action.call();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		FutureTask<T> task = new FutureTask<T>(action);
+		SwingUtilities.invokeLater(task);
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return The radio button of a number of reflections, or null if there
+	 *         is none
+	 */
+	private JRadioButton reflectButton(int reflections) {
+		switch (reflections) {
+		case 4:
+			return controller.reflect4button;
+		case 8:
+			return controller.reflect8button;
+		case 12:
+			return controller.reflect12button;
+		case 16:
+			return controller.reflect16button;
+		case 24:
+			return controller.reflect24button;
+		default:
+			return null;
+		}
+	}
+
+	@Override
+	public void run() {
+		onEventThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (controller.runButton.isEnabled()) {
+					controller.runButton.doClick(0);
+				}
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void stop() {
+		onEventThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (controller.stopButton.isEnabled()) {
+					controller.stopButton.doClick(0);
+				}
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void reset() {
+		onEventThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				controller.resetButton.doClick(0);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void changeColors() {
+		onEventThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				controller.colorButton.doClick(0);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public boolean isRunning() {
+		return controller.clock.isRunning();
+	}
+
+	@Override
+	public int getReflections() {
+		return onEventThread(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				for (int r = 4; r <= 24; r += 4) {
+					JRadioButton button = reflectButton(r);
+					if (button != null && button.isSelected()) {
+						return r;
+					}
+				}
+				return 0;
+			}
+		});
+	}
+
+	@Override
+	public void setReflections(final int reflections) {
+		final JRadioButton button = reflectButton(reflections);
+		if (button == null) {
+			throw new IllegalArgumentException("Reflections must be 4, 8, 12,"
+					+ " 16 or 24, not " + reflections);
+		}
+		onEventThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				button.doClick(0);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public String getShapes() {
+		return onEventThread(new Callable<String>() {
+			@Override
+			public String call() {
+				StringBuilder names = new StringBuilder();
+				for (int k = 0; k < ShapeKind.count(); k++) {
+					if (controller.shapeButtons[k].isSelected()) {
+						if (names.length() > 0) {
+							names.append(',');
+						}
+						names.append(ShapeKind.get(k).name);
+					}
+				}
+				return names.toString();
+			}
+		});
+	}
+
+	@Override
+	public void setShapes(String names) {
+		final int mask = names.trim().isEmpty() ? 0 : HeadlessRenderer
+				.parseShapes(names);
+		onEventThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				for (int k = 0; k < ShapeKind.count(); k++) {
+					select(controller.shapeButtons[k], (mask & 1 << k) != 0);
+				}
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void showShape(String name, final boolean shown) {
+		final ShapeKind kind = ShapeKind.forName(name.trim());
+		onEventThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				select(controller.shapeButtons[kind.id], shown);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Clicks a check box if it is not already as it should be.
+	 */
+	private static void select(JCheckBox box, boolean selected) {
+		if (box.isSelected() != selected) {
+			box.doClick(0);
+		}
+	}
+
+	@Override
+	public int getSpeedPercent() {
+		return onEventThread(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return controller.speedSlider.getValue();
+			}
+		});
+	}
+
+	@Override
+	public void setSpeedPercent(final int percent) {
+		if (percent < Controller.SPEED_MIN || percent > Controller.SPEED_MAX) {
+			throw new IllegalArgumentException("Speed must be from "
+					+ Controller.SPEED_MIN + " to " + Controller.SPEED_MAX
+					+ " percent, not " + percent);
+		}
+		onEventThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				controller.speedSlider.setValue(percent);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public int getFigureCount() {
+		return onEventThread(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return (Integer) controller.countSpinner.getValue();
+			}
+		});
+	}
+
+	@Override
+	public void setFigureCount(final int count) {
+		if (count < 0 || count > Controller.MODELS_MAX) {
+			throw new IllegalArgumentException("The number of figures must be"
+					+ " from 0 to " + Controller.MODELS_MAX + ", not " + count);
+		}
+		onEventThread(new Callable<Void>() {
+			@Override
+			public Void call() {
+				controller.countSpinner.setValue(count);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public int getFramesPerSecond() {
+		return controller.stats.getFramesPerSecond();
+	}
+
+	@Override
+	public double getTickMillis() {
+		return controller.stats.getTickMillis();
+	}
+
+	@Override
+	public double getRenderMillis() {
+		return controller.stats.getRenderMillis();
+	}
+
+	@Override
+	public int getFiguresDrawn() {
+		return controller.stats.getFigures();
+	}
+
+	@Override
+	public int getInstancesDrawn() {
+		return controller.stats.getInstances();
+	}
+
+	@Override
+	public long getTicks() {
+		return controller.clock.getTicks();
+	}
+}
@@ -0,0 +1,122 @@
+package Kaleidoscope;
+
+/**
+ * The management interface of a running Kaleidoscope, for JConsole and other
+ * JMX clients, registered as "Kaleidoscope:type=Control". It offers what the
+ * controls of the window do, and live statistics of the ticks and frames.
+ *
+ * @author Martha Trevino
+ */
+public interface ControlMXBean {
+
+	/**
+	 * Starts the figures moving, as the Run button does.
+	 */
+	void run();
+
+	/**
+	 * Pauses the figures, as the Stop button does.
+	 */
+	void stop();
+
+	/**
+	 * Pauses the figures and starts them all over, as the Reset button does.
+	 */
+	void reset();
+
+	/**
+	 * Gives the figures new colors, as the "Change colors" button does.
+	 */
+	void changeColors();
+
+	/**
+	 * @return True while the figures are moving
+	 */
+	boolean isRunning();
+
+	/**
+	 * @return The number of reflections chosen
+	 */
+	int getReflections();
+
+	/**
+	 * @param reflections
+	 *            The number of reflections: 4, 8, 12, 16 or 24
+	 */
+	void setReflections(int reflections);
+
+	/**
+	 * @return The names of the shape kinds shown, separated by commas
+	 */
+	String getShapes();
+
+	/**
+	 * @param names
+	 *            The names of the shape kinds to show, separated by commas;
+	 *            the others are hidden
+	 */
+	void setShapes(String names);
+
+	/**
+	 * Shows or hides the figures of one kind of shape.
+	 *
+	 * @param name
+	 *            The name of the shape kind, such as "triangle"
+	 * @param shown
+	 *            True to show them, false to hide them
+	 */
+	void showShape(String name, boolean shown);
+
+	/**
+	 * @return The speed of the figures, in percent
+	 */
+	int getSpeedPercent();
+
+	/**
+	 * @param percent
+	 *            The speed of the figures, from 0 to 200 percent
+	 */
+	void setSpeedPercent(int percent);
+
+	/**
+	 * @return The number of figures
+	 */
+	int getFigureCount();
+
+	/**
+	 * @param count
+	 *            The number of figures
+	 */
+	void setFigureCount(int count);
+
+	/**
+	 * @return The number of frames drawn in the last second
+	 */
+	int getFramesPerSecond();
+
+	/**
+	 * @return How long the last tick took, in milliseconds
+	 */
+	double getTickMillis();
+
+	/**
+	 * @return How long a frame took to draw over the last second, on average,
+	 *         in milliseconds
+	 */
+	double getRenderMillis();
+
+	/**
+	 * @return The number of figures drawn by the last frame
+	 */
+	int getFiguresDrawn();
+
+	/**
+	 * @return The number of reflected instances filled by the last frame
+	 */
+	int getInstancesDrawn();
+
+	/**
+	 * @return The number of ticks since the start
+	 */
+	long getTicks();
+}
@@ -2,16 +2,22 @@ package Kaleidoscope;
 
 /**
  * Basic "Kaleidoscope" animation, making use of the
- * Model-View-Controller design pattern and the Timer 
- * and Observer/Observable classes.
+ * Model-View-Controller design pattern and the Timer class.
  */
 
 import java.awt.*;
 import java.awt.event.*;
-import java.util.ArrayList;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Hashtable;
 import java.util.Timer;
 
+import javax.management.JMException;
 import javax.swing.*;
 import javax.swing.event.*;
 
@@ -31,6 +37,7 @@ public class Controller extends JFrame {
 	JButton stopButton = new JButton("Stop");
 	JButton colorButton = new JButton("Change colors");
 	JButton resetButton = new JButton("Reset");
+	JButton saveStatsButton = new JButton("Save statistics");
 
 	JRadioButton reflect4button = new JRadioButton("4 reflections");
 	JRadioButton reflect8button = new JRadioButton("8 reflections");
@@ -38,11 +45,26 @@ public class Controller extends JFrame {
 	JRadioButton reflect16button = new JRadioButton("16 reflections");
 	JRadioButton reflect24button = new JRadioButton("24 reflections");
 
-	JCheckBox ballButton = new JCheckBox("Circles");
-	JCheckBox rectangleButton = new JCheckBox("Rectangles");
-	JCheckBox triangleButton = new JCheckBox("Triangles");
-	JCheckBox roundRectButton = new JCheckBox("Round Rectangles");
-	JCheckBox diamondButton = new JCheckBox("Diamonds");
+	/** One check box per ShapeKind, indexed by its id. */
+	JCheckBox[] shapeButtons = new JCheckBox[ShapeKind.count()];
+
+	JCheckBox sectorButton = new JCheckBox("Sector renderer");
+	JCheckBox mirrorButton = new JCheckBox("Mirror symmetry");
+	JCheckBox activeButton = new JCheckBox("Active rendering");
+	JCheckBox smoothButton = new JCheckBox("Smooth motion");
+	JCheckBox qualityButton = new JCheckBox("Adaptive quality");
+	JCheckBox rasterButton = new JCheckBox("Software rasterizer");
+	JCheckBox spriteButton = new JCheckBox("Smooth sprites");
+	JCheckBox indexedButton = new JCheckBox("Indexed colors");
+	JCheckBox cycleButton = new JCheckBox("Cycle colors");
+	JCheckBox trailsButton = new JCheckBox("Trails");
+	JCheckBox collisionButton = new JCheckBox("Collisions");
+	JCheckBox recordButton = new JCheckBox("Record");
+	JCheckBox statsButton = new JCheckBox("Show statistics");
+
+	/** Scrubs through the recorded ticks; moving it stops the figures. */
+	JSlider timeline = new JSlider(JSlider.HORIZONTAL, 0, 0, 0);
+	JLabel timelineLabel = new JLabel("Not recording ");
 
 	Timer timer;
 
@@ -53,15 +75,44 @@ public class Controller extends JFrame {
 			SPEED_INIT);
 
 	/**
-	 * The Model is the object that does all the computations. It is completely
-	 * independent of the Controller and View objects.
+	 * The FigureStore holds every Model and does all the computations. It is
+	 * completely independent of the Controller and View objects.
 	 */
-	ArrayList<Model> modelsList = new ArrayList<Model>();
 	final int MODELS_NUM = 60;
+	static final int MODELS_MAX = 10000000;
+	/** Turns of the color wheel per second with "Cycle colors". */
+	static final double CYCLE_TURNS = 0.1;
+	FigureStore figures = new FigureStore(MODELS_NUM);
+
+	JSpinner countSpinner = new JSpinner(new SpinnerNumberModel(MODELS_NUM,
+			0, MODELS_MAX, 10));
+
+	/** Lowers the quality of the picture when frames take too long. */
+	QualityGovernor governor = new QualityGovernor(
+			(long) (QualityGovernor.DEFAULT_BUDGET_MILLIS * 1e6));
+	JSpinner budgetSpinner = new JSpinner(new SpinnerNumberModel(
+			QualityGovernor.DEFAULT_BUDGET_MILLIS, 1.0, 1000.0, 1.0));
+
+	/** Steps of the simulation per second, whatever the frame rate. */
+	JSpinner tickRateSpinner = new JSpinner(new SpinnerNumberModel(
+			1000 / SimulationClock.TICK_MILLIS, SimulationClock.MIN_TICK_RATE,
+			SimulationClock.MAX_TICK_RATE, 5));
+
+	/** The SimulationClock advances all the Models together. */
+	SimulationClock clock;
 
 	/** The View object displays what is happening in the Model. */
 	View view;
 
+	/** Records where the time of every tick and frame goes. */
+	FrameStats stats = new FrameStats();
+
+	/** The ticks being recorded, or null. */
+	Recording recording;
+
+	/** True while the timeline is being moved to follow the recording. */
+	boolean followingTimeline;
+
 	/**
 	 * Runs the kaleidoscope program.
 	 * 
@@ -79,29 +130,16 @@ public class Controller extends JFrame {
 	 */
 	private void init() {
 
-		for (int i = 0; i < MODELS_NUM; i++) {
-			Model toAdd = new Model();
-			if (i % 5 == 0)
-				toAdd.setShapeType("ball");
-			else if (i % 5 == 1)
-				toAdd.setShapeType("rectangle");
-			else if (i % 5 == 2)
-				toAdd.setShapeType("triangle");
-			else if (i % 5 == 3)
-				toAdd.setShapeType("roundRect");
-			else
-				toAdd.setShapeType("diamond");
-
-			modelsList.add(i, toAdd);
-		}
+		figures.setCount(MODELS_NUM);
 
-		view = new View(modelsList); // The view needs to know what model to
-										// look at
+		clock = new SimulationClock(figures);
 
-		for (int i = 0; i < MODELS_NUM; i++) {
-			modelsList.get(i).addObserver(view);// The models need to give
-												// permission to be observed
-		}
+		view = new View(clock.getExchange()); // The view needs to know where
+												// the models are published
+		clock.addListener(view); // The clock tells the view about every tick
+
+		view.setStats(stats);
+		clock.setStats(stats);
 	}
 
 	/**
@@ -115,6 +153,13 @@ public class Controller extends JFrame {
 		setMinimumSize(new Dimension(500, 500));
 		setTitle("Kaleidoscope");
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		// JMX clients can work the controls too, once they are listened to
+		try {
+			new Control(this).register();
+		} catch (JMException e) {
+			System.err.println("Kaleidoscope cannot be managed over JMX: "
+					+ e.getMessage());
+		}
 	}
 
 	/**
@@ -147,6 +192,24 @@ public class Controller extends JFrame {
 		speedSlider.setPaintLabels(true);
 		buttonPanel.add(speedSlider);
 
+		// Spinner for the number of figures
+		JPanel countPanel = new JPanel(new BorderLayout());
+		countPanel.add(BorderLayout.WEST, new JLabel("Figures "));
+		countPanel.add(BorderLayout.CENTER, countSpinner);
+		buttonPanel.add(countPanel);
+
+		// Spinner for the number of ticks per second
+		JPanel tickRatePanel = new JPanel(new BorderLayout());
+		tickRatePanel.add(BorderLayout.WEST, new JLabel("Ticks/s "));
+		tickRatePanel.add(BorderLayout.CENTER, tickRateSpinner);
+		buttonPanel.add(tickRatePanel);
+
+		// Spinner for the frame budget of the governor
+		JPanel budgetPanel = new JPanel(new BorderLayout());
+		budgetPanel.add(BorderLayout.WEST, new JLabel("Budget ms "));
+		budgetPanel.add(BorderLayout.CENTER, budgetSpinner);
+		buttonPanel.add(budgetPanel);
+
 		// Radio buttons for reflections
 		ButtonGroup group = new ButtonGroup();
 		group.add(reflect4button);
@@ -164,13 +227,36 @@ public class Controller extends JFrame {
 		reflect8button.setSelected(true);
 
 		// Check boxes for type of figures
-		buttonPanel.add(ballButton);
-		buttonPanel.add(rectangleButton);
-		buttonPanel.add(triangleButton);
-		buttonPanel.add(roundRectButton);
-		buttonPanel.add(diamondButton);
+		for (int k = 0; k < shapeButtons.length; k++) {
+			shapeButtons[k] = new JCheckBox(ShapeKind.get(k).label);
+			buttonPanel.add(shapeButtons[k]);
+		}
 
-		triangleButton.setSelected(true);
+		shapeButtons[ShapeKind.TRIANGLE.id].setSelected(true);
+
+		// Check boxes for the way the picture is drawn
+		buttonPanel.add(sectorButton);
+		buttonPanel.add(mirrorButton);
+		buttonPanel.add(activeButton);
+		buttonPanel.add(smoothButton);
+		buttonPanel.add(qualityButton);
+		buttonPanel.add(rasterButton);
+		buttonPanel.add(spriteButton);
+		buttonPanel.add(indexedButton);
+		buttonPanel.add(cycleButton);
+		cycleButton.setEnabled(false);
+		buttonPanel.add(trailsButton);
+		buttonPanel.add(collisionButton);
+		buttonPanel.add(recordButton);
+		buttonPanel.add(statsButton);
+		buttonPanel.add(saveStatsButton);
+
+		// The timeline of the recording, over the picture
+		slidePanel.setLayout(new BorderLayout());
+		slidePanel.add(BorderLayout.WEST, timelineLabel);
+		slidePanel.add(BorderLayout.CENTER, timeline);
+		timeline.setEnabled(false);
+		this.add(BorderLayout.NORTH, slidePanel);
 
 		// Add the view
 		this.add(BorderLayout.CENTER, view);
@@ -186,10 +272,7 @@ public class Controller extends JFrame {
 			public void actionPerformed(ActionEvent event) {
 				runButton.setEnabled(false);
 				stopButton.setEnabled(true);
-				for (int i = 0; i < MODELS_NUM; i++) {
-					modelsList.get(i).start();
-				}
-
+				clock.start();
 			}
 		});
 		// The Stop button tells the Model to pause
@@ -198,30 +281,24 @@ public class Controller extends JFrame {
 			public void actionPerformed(ActionEvent event) {
 				runButton.setEnabled(true);
 				stopButton.setEnabled(false);
-				for (int i = 0; i < MODELS_NUM; i++) {
-					modelsList.get(i).pause();
-				}
+				clock.pause();
 			}
 		});
-		// The Reset button restarts the JFrame
+		// The Reset button stops the figures and starts them all over
 		resetButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent event) {
-				dispose();
-
-				Controller c = new Controller();
-				c.init();
-				c.display();
-
+				runButton.setEnabled(true);
+				stopButton.setEnabled(false);
+				clock.pause();
+				clock.reset();
 			}
 		});
 		// The Color button sets new colors for the figures
 		colorButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent event) {
-				for (int i = 0; i < MODELS_NUM; i++) {
-					modelsList.get(i).setColor();
-				}
+				clock.setColors();
 				view.repaint();
 			}
 		});
@@ -232,12 +309,24 @@ public class Controller extends JFrame {
 				JSlider source = (JSlider) e.getSource();
 				if (!source.getValueIsAdjusting()) {
 					int percent = (int) source.getValue();
-					for (int i = 0; i < MODELS_NUM; i++) {
-						modelsList.get(i).setSpeed(percent);
-					}
+					clock.setSpeed(percent);
 				}
 			}
 		});
+		// The spinner grows or shrinks the number of figures
+		countSpinner.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				clock.setCount((Integer) countSpinner.getValue());
+			}
+		});
+		// The tick rate spinner changes how often the figures are stepped
+		tickRateSpinner.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				clock.setTickRate((Integer) tickRateSpinner.getValue());
+			}
+		});
 		// The Reflect buttons change the number of reflections
 		reflect4button.addActionListener(new ActionListener() {
 			@Override
@@ -270,45 +359,252 @@ public class Controller extends JFrame {
 			}
 		});
 		// Check boxes to change the figures that will be displayed
-		ballButton.addActionListener(new ActionListener() {
+		for (int k = 0; k < shapeButtons.length; k++) {
+			final JCheckBox shapeButton = shapeButtons[k];
+			final ShapeKind kind = ShapeKind.get(k);
+			shapeButton.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					view.setShown(kind, shapeButton.isSelected());
+				}
+			});
+		}
+		// Check boxes to change the way the reflections are drawn
+		sectorButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				view.setSectors(sectorButton.isSelected());
+				view.repaint();
+			}
+		});
+		mirrorButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				view.setMirror(mirrorButton.isSelected());
+				view.repaint();
+			}
+		});
+		rasterButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				view.setRaster(rasterButton.isSelected());
+				view.repaint();
+			}
+		});
+		spriteButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				view.setSprites(spriteButton.isSelected());
+				view.repaint();
+			}
+		});
+		indexedButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				view.setIndexed(indexedButton.isSelected());
+				cycleButton.setEnabled(indexedButton.isSelected());
+				view.repaint();
+			}
+		});
+		cycleButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				view.setHueCycle(cycleButton.isSelected() ? CYCLE_TURNS : 0);
+				view.repaint();
+			}
+		});
+		trailsButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				view.setBall(ballButton.isSelected());
+				view.setTrails(trailsButton.isSelected());
+				view.repaint();
 			}
 		});
-		rectangleButton.addActionListener(new ActionListener() {
+		collisionButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				view.setRectangle(rectangleButton.isSelected());
+				clock.setCollisions(collisionButton.isSelected());
 			}
 		});
-		triangleButton.addActionListener(new ActionListener() {
+		// The Record check box records every tick, for the timeline
+		recordButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				view.setTriangle(triangleButton.isSelected());
+				if (recordButton.isSelected()) {
+					startRecording();
+				} else {
+					stopRecording();
+				}
+			}
+		});
+		// Moving the timeline stops the figures and shows a recorded tick
+		timeline.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				if (followingTimeline || recording == null) {
+					return;
+				}
+				if (clock.isRunning()) {
+					runButton.setEnabled(true);
+					stopButton.setEnabled(false);
+					clock.pause();
+				}
+				clock.showRecorded(recording, timeline.getValue());
+				timelineLabel.setText("Tick " + timeline.getValue() + " ");
+			}
+		});
+		// The timeline follows the ticks as they are recorded
+		clock.addListener(new SimulationClock.Listener() {
+			@Override
+			public void ticked(long tick) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						followRecording();
+					}
+				});
 			}
 		});
-		roundRectButton.addActionListener(new ActionListener() {
+		activeButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				view.setRoundRect(roundRectButton.isSelected());
+				view.setActive(activeButton.isSelected());
 			}
 		});
-		diamondButton.addActionListener(new ActionListener() {
+		// Smooth motion draws the figures between ticks, with active rendering
+		smoothButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				view.setDiamond(diamondButton.isSelected());
+				view.setInterpolated(smoothButton.isSelected());
+			}
+		});
+		// Adaptive quality trades resolution and reflections for frame time
+		qualityButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				governor.reset();
+				view.setGovernor(qualityButton.isSelected() ? governor : null);
+				view.repaint();
+			}
+		});
+		budgetSpinner.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				governor.setBudget((long) (((Number) budgetSpinner.getValue())
+						.doubleValue() * 1e6));
+			}
+		});
+		// The statistics can be shown over the picture, or saved
+		statsButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				view.setHud(statsButton.isSelected());
+				view.repaint();
+			}
+		});
+		saveStatsButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				saveStats();
+			}
+		});
+		// If the View cannot render actively, it says so
+		view.addPropertyChangeListener("active", new PropertyChangeListener() {
+			@Override
+			public void propertyChange(PropertyChangeEvent e) {
+				activeButton.setSelected(view.isActive());
 			}
 		});
 		// When the window is resized, the Model is given the new limits
 		this.addComponentListener(new ComponentAdapter() {
 			@Override
 			public void componentResized(ComponentEvent arg0) {
-				for (int i = 0; i < MODELS_NUM; i++) {
-					modelsList.get(i).setLimits(view.getWidth(),
-							view.getHeight());
-				}
+				clock.setLimits(view.getWidth(), view.getHeight());
 			}
 		});
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Starts recording every tick into a temporary file.
+	 */
+	private void startRecording() {
+		try {
+			File file = File.createTempFile("kaleidoscope", ".rec");
+			file.deleteOnExit();
+			recording = new Recording(file, Recording.DEFAULT_MEGABYTES << 20,
+					(Integer) countSpinner.getValue());
+		} catch (IOException e) {
+			recordButton.setSelected(false);
+			JOptionPane.showMessageDialog(this, e.getMessage(), "Record",
+					JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		clock.setRecording(recording);
+		timeline.setEnabled(true);
+	}
+
+	/**
+	 * Stops recording and throws the recording away.
+	 */
+	private void stopRecording() {
+		Recording stopped = recording;
+		clock.setRecording(null);
+		recording = null;
+		recordButton.setSelected(false);
+		timeline.setEnabled(false);
+		timelineLabel.setText("Not recording ");
+		try {
+			stopped.close();
+		} catch (IOException e) {
+			// Nothing is kept anyway
+		}
+		stopped.getFile().delete();
+	}
+
+	/**
+	 * Stretches the timeline over the ticks recorded so far and, while the
+	 * figures move, keeps it at the last one.
+	 */
+	private void followRecording() {
+		if (recording == null) {
+			return;
+		}
+		IOException failure = recording.getFailure();
+		if (failure != null) {
+			stopRecording();
+			JOptionPane.showMessageDialog(this, failure.getMessage(),
+					"Record", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		long last = recording.last();
+		if (last < 0) {
+			return;
+		}
+		followingTimeline = true;
+		timeline.setMinimum((int) recording.first());
+		timeline.setMaximum((int) last);
+		if (clock.isRunning()) {
+			timeline.setValue((int) last);
+		}
+		followingTimeline = false;
+		timelineLabel.setText("Tick " + timeline.getValue() + " ");
+	}
+
+	/**
+	 * Asks for a file and writes the frame statistics to it as CSV.
+	 */
+	private void saveStats() {
+		JFileChooser chooser = new JFileChooser();
+		chooser.setSelectedFile(new File("kaleidoscope-frames.csv"));
+		if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		try (Writer out = new BufferedWriter(new FileWriter(
+				chooser.getSelectedFile()))) {
+			stats.writeCsv(out);
+		} catch (IOException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage(),
+					"Save statistics", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package Kaleidoscope;
+
+import java.util.Arrays;
+
+/**
+ * A DirtyRegion finds the parts of a frame that have to be drawn again. It
+ * keeps the outlines of the frame before, and compares them, polygon by
+ * polygon, with the outlines of the new frame: wherever a polygon has moved,
+ * the tiles under its old and its new bounding box are dirty. Everything else
+ * is the same as in the frame before and can be left alone.
+ *
+ * @author Martha Trevino
+ */
+class DirtyRegion {
+
+	/** Width and height of a tile, in pixels. */
+	static final int TILE = 32;
+	/**
+	 * How far outside its bounding box a polygon may still fill a pixel:
+	 * Java2D moves the vertices by up to three quarters of a pixel of the
+	 * surface, which is a pixel and a half at half resolution.
+	 */
+	static final int MARGIN = 2;
+
+	private int columns;
+	private int rows;
+	/** One flag per tile, row after row. */
+	private boolean[] dirty = new boolean[0];
+	private int dirtyTiles;
+
+	/** A rectangle drawn over the frame before, or an empty one. */
+	private int overLeft;
+	private int overTop;
+	private int overRight = -1;
+	private int overBottom = -1;
+
+	/** The outlines of the frame before. */
+	private final PolygonBuffer before = new PolygonBuffer();
+
+	/** The rectangles found by rectangles(). */
+	int[] rectX = new int[16];
+	int[] rectY = new int[16];
+	int[] rectWidth = new int[16];
+	int[] rectHeight = new int[16];
+
+	/**
+	 * Works out which tiles have changed since the frame before, and
+	 * remembers the new outlines for the next frame.
+	 *
+	 * @param polygons
+	 *            The outlines of the new frame
+	 * @param width
+	 *            Width of the frame
+	 * @param height
+	 *            Height of the frame
+	 * @param all
+	 *            True if the whole frame is dirty, whatever moved
+	 */
+	void update(PolygonBuffer polygons, int width, int height, boolean all) {
+		int c = (width + TILE - 1) / TILE;
+		int r = (height + TILE - 1) / TILE;
+		if (c != columns || r != rows) {
+			columns = c;
+			rows = r;
+			dirty = new boolean[c * r];
+			all = true;
+		}
+		if (all) {
+			Arrays.fill(dirty, true);
+			dirtyTiles = dirty.length;
+		} else {
+			Arrays.fill(dirty, false);
+			dirtyTiles = 0;
+			compare(polygons);
+			if (overRight >= overLeft) {
+				mark(overLeft, overTop, overRight, overBottom);
+			}
+		}
+		overRight = -1;
+		overBottom = -1;
+		remember(polygons);
+	}
+
+	/**
+	 * Says that something else was drawn over part of the frame, so the
+	 * next update() finds it dirty.
+	 *
+	 * @param x
+	 *            Left of the rectangle drawn over
+	 * @param y
+	 *            Top of the rectangle drawn over
+	 * @param width
+	 *            Width of the rectangle drawn over
+	 * @param height
+	 *            Height of the rectangle drawn over
+	 */
+	void invalidate(int x, int y, int width, int height) {
+		if (overRight < overLeft) {
+			overLeft = x;
+			overTop = y;
+			overRight = x + width;
+			overBottom = y + height;
+		} else {
+			overLeft = Math.min(overLeft, x);
+			overTop = Math.min(overTop, y);
+			overRight = Math.max(overRight, x + width);
+			overBottom = Math.max(overBottom, y + height);
+		}
+	}
+
+	/**
+	 * Marks the tiles under every polygon that differs from the one in the
+	 * same place in the frame before, and under every polygon that is gone.
+	 */
+	private void compare(PolygonBuffer polygons) {
+		int common = Math.min(polygons.polygons, before.polygons);
+		for (int p = 0; p < common; p++) {
+			if (!same(polygons, p)) {
+				mark(before, p);
+				mark(polygons, p);
+			}
+		}
+		for (int p = common; p < before.polygons; p++) {
+			mark(before, p);
+		}
+		for (int p = common; p < polygons.polygons; p++) {
+			mark(polygons, p);
+		}
+	}
+
+	/**
+	 * @return True if polygon p has the same color and vertices as polygon p
+	 *         of the frame before.
+	 */
+	private boolean same(PolygonBuffer polygons, int p) {
+		int first = polygons.start[p];
+		int vertices = polygons.start[p + 1] - first;
+		int firstBefore = before.start[p];
+		if (polygons.color[p] != before.color[p]
+				|| before.start[p + 1] - firstBefore != vertices) {
+			return false;
+		}
+		for (int v = 0; v < vertices; v++) {
+			if (polygons.xs[first + v] != before.xs[firstBefore + v]
+					|| polygons.ys[first + v] != before.ys[firstBefore + v]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the tiles under the bounding box of a polygon.
+	 */
+	private void mark(PolygonBuffer polygons, int p) {
+		mark(polygons.minX[p], polygons.minY[p], polygons.maxX[p],
+				polygons.maxY[p]);
+	}
+
+	/**
+	 * Marks the tiles under a box, and MARGIN pixels around it.
+	 */
+	private void mark(int minX, int minY, int maxX, int maxY) {
+		int left = Math.max(Math.floorDiv(minX - MARGIN, TILE), 0);
+		int top = Math.max(Math.floorDiv(minY - MARGIN, TILE), 0);
+		int right = Math.min((maxX + MARGIN) / TILE, columns - 1);
+		int bottom = Math.min((maxY + MARGIN) / TILE, rows - 1);
+		for (int row = top; row <= bottom; row++) {
+			for (int column = left; column <= right; column++) {
+				int t = row * columns + column;
+				if (!dirty[t]) {
+					dirty[t] = true;
+					dirtyTiles++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the outlines of the new frame, keeping the arrays.
+	 */
+	private void remember(PolygonBuffer polygons) {
+		if (before.xs.length < polygons.vertices) {
+			before.xs = new float[polygons.xs.length];
+			before.ys = new float[polygons.ys.length];
+		}
+		if (before.color.length < polygons.polygons) {
+			before.start = new int[polygons.start.length];
+			before.color = new int[polygons.color.length];
+			before.minX = new int[polygons.minX.length];
+			before.minY = new int[polygons.minY.length];
+			before.maxX = new int[polygons.maxX.length];
+			before.maxY = new int[polygons.maxY.length];
+		}
+		int n = polygons.polygons;
+		System.arraycopy(polygons.xs, 0, before.xs, 0, polygons.vertices);
+		System.arraycopy(polygons.ys, 0, before.ys, 0, polygons.vertices);
+		System.arraycopy(polygons.start, 0, before.start, 0, n + 1);
+		System.arraycopy(polygons.color, 0, before.color, 0, n);
+		System.arraycopy(polygons.minX, 0, before.minX, 0, n);
+		System.arraycopy(polygons.minY, 0, before.minY, 0, n);
+		System.arraycopy(polygons.maxX, 0, before.maxX, 0, n);
+		System.arraycopy(polygons.maxY, 0, before.maxY, 0, n);
+		before.vertices = polygons.vertices;
+		before.polygons = n;
+	}
+
+	/**
+	 * @return True if nothing has changed since the frame before.
+	 */
+	boolean isClean() {
+		return dirtyTiles == 0;
+	}
+
+	/**
+	 * @return The part of the frame that is dirty, from 0 to 1.
+	 */
+	double coverage() {
+		return dirty.length == 0 ? 1 : (double) dirtyTiles / dirty.length;
+	}
+
+	/**
+	 * Covers the dirty tiles with rectangles: in every row, from the first to
+	 * the last dirty tile, and rows with the same span merged into one.
+	 *
+	 * @return The number of rectangles, found in rectX, rectY, rectWidth and
+	 *         rectHeight
+	 */
+	int rectangles() {
+		int n = 0;
+		int lastLeft = -1;
+		int lastRight = -1;
+		for (int row = 0; row < rows; row++) {
+			int left = 0;
+			while (left < columns && !dirty[row * columns + left]) {
+				left++;
+			}
+			if (left == columns) {
+				lastLeft = -1;
+				continue;
+			}
+			int right = columns - 1;
+			while (!dirty[row * columns + right]) {
+				right--;
+			}
+			if (left == lastLeft && right == lastRight) {
+				rectHeight[n - 1] += TILE;
+				continue;
+			}
+			if (n == rectX.length) {
+				rectX = Arrays.copyOf(rectX, 2 * n);
+				rectY = Arrays.copyOf(rectY, 2 * n);
+				rectWidth = Arrays.copyOf(rectWidth, 2 * n);
+				rectHeight = Arrays.copyOf(rectHeight, 2 * n);
+			}
+			rectX[n] = left * TILE;
+			rectY[n] = row * TILE;
+			rectWidth[n] = (right - left + 1) * TILE;
+			rectHeight[n] = TILE;
+			n++;
+			lastLeft = left;
+			lastRight = right;
+		}
+		return n;
+	}
+
+	/**
+	 * @param polygons
+	 *            The outlines last given to update()
+	 * @param p
+	 *            A polygon
+	 * @param r
+	 *            A rectangle found by rectangles()
+	 * @return True if the polygon could fill a pixel of the rectangle: if
+	 *         its bounding box, MARGIN pixels bigger, overlaps it
+	 */
+	boolean overlaps(PolygonBuffer polygons, int p, int r) {
+		return polygons.maxX[p] + MARGIN >= rectX[r]
+				&& polygons.minX[p] - MARGIN < rectX[r] + rectWidth[r]
+				&& polygons.maxY[p] + MARGIN >= rectY[r]
+				&& polygons.minY[p] - MARGIN < rectY[r] + rectHeight[r];
+	}
+}
@@ -0,0 +1,185 @@
+package Kaleidoscope;
+
+/**
+ * A FigureState is a copy of everything needed to draw the figures of a
+ * FigureStore, as it was at the end of one tick. The SimulationClock fills
+ * one in and hands it over through a StateExchange; while the renderer holds
+ * it, nobody writes to it, so every frame shows the figures of a single tick.
+ * The View can also blend two ticks in a row into a state of its own, to
+ * draw the figures between them.
+ *
+ * @author Martha Trevino
+ */
+class FigureState {
+
+	/** The tick this is the state of. */
+	long tick;
+
+	/**
+	 * How far the positions are from tick toward the next tick, from 0 up to
+	 * 1. Only states blended by interpolate() are ever between two ticks.
+	 */
+	float between;
+
+	/** When the state was published, from System.nanoTime(). */
+	long published;
+	/** The time between two ticks when it was published, in nanoseconds. */
+	long period;
+
+	/** Number of figures. */
+	int count;
+
+	int[] x = new int[0];
+	int[] y = new int[0];
+	/** The steps each figure will take at the next tick. */
+	int[] xDelta = new int[0];
+	int[] yDelta = new int[0];
+	int[] size = new int[0];
+	int[] rgb = new int[0];
+	float[] hue = new float[0];
+	/** The id of the ShapeKind of each figure. */
+	byte[] kind = new byte[0];
+
+	/** The styleVersion of the FigureStore when it was copied. */
+	int styleVersion = -1;
+	/** The colorVersion of the FigureStore when it was copied. */
+	int colorVersion;
+
+	/** The size of the View the figures bounce around in. */
+	int width;
+	int height;
+
+	/**
+	 * Copies the figures of a store, keeping the arrays when they are big
+	 * enough. Sizes, colors and shapes are only copied when they have changed
+	 * since this state was last filled in.
+	 *
+	 * @param figures
+	 *            The store to copy
+	 * @param tick
+	 *            The tick the store is at
+	 */
+	void copyFrom(FigureStore figures, long tick) {
+		int n = figures.count;
+		if (x.length < n) {
+			allocate(figures.x.length);
+		}
+		System.arraycopy(figures.x, 0, x, 0, n);
+		System.arraycopy(figures.y, 0, y, 0, n);
+		System.arraycopy(figures.xDelta, 0, xDelta, 0, n);
+		System.arraycopy(figures.yDelta, 0, yDelta, 0, n);
+		if (styleVersion != figures.styleVersion || count != n) {
+			System.arraycopy(figures.size, 0, size, 0, n);
+			System.arraycopy(figures.rgb, 0, rgb, 0, n);
+			System.arraycopy(figures.hue, 0, hue, 0, n);
+			System.arraycopy(figures.kind, 0, kind, 0, n);
+		}
+		count = n;
+		styleVersion = figures.styleVersion;
+		colorVersion = figures.colorVersion;
+		width = figures.getWidth();
+		height = figures.getHeight();
+		this.tick = tick;
+		between = 0;
+	}
+
+	/**
+	 * Makes new, empty arrays, so that everything is copied next time.
+	 *
+	 * @param capacity
+	 *            The number of figures to make room for
+	 */
+	void allocate(int capacity) {
+		x = new int[capacity];
+		y = new int[capacity];
+		xDelta = new int[capacity];
+		yDelta = new int[capacity];
+		size = new int[capacity];
+		rgb = new int[capacity];
+		hue = new float[capacity];
+		kind = new byte[capacity];
+		styleVersion = -1;
+	}
+
+	/**
+	 * Fills in the positions of the figures part of the way from one tick to
+	 * the next, and shares everything else with the later state. A figure
+	 * that bounced off a wall at the next tick stayed where it was, so
+	 * instead of standing still it is taken to the wall and back.
+	 *
+	 * @param before
+	 *            The state of a tick
+	 * @param after
+	 *            The state of the tick after it, which must not change while
+	 *            this state is used
+	 * @param fraction
+	 *            How far to go from before to after, from 0 up to 1
+	 * @return False, changing nothing, if the figures cannot be blended
+	 *         because the ticks do not follow each other or the figures have
+	 *         changed other than by stepping
+	 */
+	boolean interpolate(FigureState before, FigureState after, float fraction) {
+		int n = after.count;
+		if (after.tick != before.tick + 1 || before.count != n
+				|| before.styleVersion - before.colorVersion != after.styleVersion
+						- after.colorVersion) {
+			return false;
+		}
+		if (x.length < n) {
+			x = new int[after.x.length];
+			y = new int[after.x.length];
+		}
+		int[] size = after.size;
+		blend(before.x, after.x, after.xDelta, after.width, size, x, n,
+				fraction);
+		blend(before.y, after.y, after.yDelta, after.height, size, y, n,
+				fraction);
+		xDelta = after.xDelta;
+		yDelta = after.yDelta;
+		this.size = size;
+		rgb = after.rgb;
+		hue = after.hue;
+		kind = after.kind;
+		count = n;
+		styleVersion = after.styleVersion;
+		colorVersion = after.colorVersion;
+		width = after.width;
+		height = after.height;
+		published = after.published;
+		period = after.period;
+		tick = before.tick;
+		between = fraction;
+		return true;
+	}
+
+	/**
+	 * Blends the positions along one axis.
+	 *
+	 * @param delta
+	 *            The deltas of the later state: those the figures were
+	 *            stepped by, even if the speed changed between the ticks,
+	 *            but turned round for a figure that bounced
+	 * @param width
+	 *            The width of the View along the axis
+	 */
+	private static void blend(int[] from, int[] to, int[] delta, int width,
+			int[] size, int[] blended, int n, float fraction) {
+		// How far along, in 65536ths of a step
+		int f = Math.round(fraction * 65536);
+		for (int i = 0; i < n; i++) {
+			int p = from[i];
+			if (to[i] != p || delta[i] == 0) {
+				blended[i] = p + ((to[i] - p) * f + 32768 >> 16);
+				continue;
+			}
+			// Bounced: out to the wall and back, turning half way through,
+			// heading the way it went before its delta was turned round
+			int d = -delta[i];
+			int limit = (width - size[i]) / 2;
+			int wall = d > 0 ? Math.max(p, Math.min(p + d, limit)) : Math.min(
+					p, Math.max(p + d, -limit));
+			blended[i] = wall
+					- Math.round(Math.abs(2 * fraction - 1) * (wall - p));
+		}
+	}
+}
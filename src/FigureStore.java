@@ -0,0 +1,473 @@
+package Kaleidoscope;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.function.IntConsumer;
+import java.util.random.RandomGenerator;
+import java.util.stream.IntStream;
+
+/**
+ * The FigureStore holds the state of every figure in packed columns of
+ * primitives, one array per attribute and one slot per figure. Stepping the
+ * figures and painting them both stream through these arrays instead of
+ * chasing one object per figure. A Model is a lightweight handle over a single
+ * slot.
+ *
+ * @author Martha Trevino
+ */
+public class FigureStore {
+
+	static final float SATURATION = 0.9f; // 1.0 for brilliant, 0.0 for dull
+	static final float LUMINANCE = 1.0f; // 1.0 for brighter, 0.0 for black
+
+	/**
+	 * The color of HUES hues evenly around the color wheel. Two neighbors
+	 * differ by at most one level in each channel.
+	 */
+	static final int HUES = 4096;
+	private static final int[] HUE_RGB = hueTable();
+
+	/** Sizes of new figures, in pixels, from MIN_SIZE up to MAX_SIZE. */
+	static final int MIN_SIZE = 50;
+	static final int MAX_SIZE = 80;
+
+	/** Figures randomized together on one core. */
+	private static final int RANDOM_CHUNK = 65536;
+
+	/**
+	 * Steps every figure at once, or null to step them one at a time. It is
+	 * the VectorStepper, if it was built, the jdk.incubator.vector module is
+	 * available and the kaleidoscope.vector property is not "false".
+	 */
+	static final Stepper STEPPER = vectorStepper();
+
+	Random rn;
+
+	/** Makes the figures bounce off one another, or null if they do not. */
+	private Collider collider;
+
+	/** Number of slots in use. */
+	int count;
+
+	/**
+	 * The size of the View and the speed last given to every figure, for the
+	 * figures added later.
+	 */
+	private int width;
+	private int height;
+	private int speedPercent = 100;
+
+	int[] x;
+	int[] y;
+	int[] xDelta;
+	int[] yDelta;
+	int[] speedX;
+	int[] speedY;
+	int[] size;
+	int[] xLimit;
+	int[] yLimit;
+	float[] hue;
+	int[] rgb;
+	/** The id of the ShapeKind of each figure. */
+	byte[] kind;
+
+	/**
+	 * Incremented every time a color or a shape changes, so painters can
+	 * cache.
+	 */
+	int styleVersion;
+
+	/**
+	 * Incremented along with styleVersion when only a color changes, so
+	 * styleVersion - colorVersion stays the same as long as sizes, shapes and
+	 * positions are only changed by stepping.
+	 */
+	int colorVersion;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *            The number of figures to make room for.
+	 */
+	FigureStore(int capacity) {
+		this(capacity, new Random());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *            The number of figures to make room for.
+	 * @param rn
+	 *            The source of random positions, speeds and colors.
+	 */
+	FigureStore(int capacity, Random rn) {
+		this.rn = rn;
+		allocate(Math.max(capacity, 1));
+	}
+
+	/**
+	 * Adds a new figure with a random size, position, speed and color.
+	 *
+	 * @param shape
+	 *            The id of the figure's ShapeKind.
+	 * @return The slot of the new figure.
+	 */
+	public int add(int shape) {
+		if (count == x.length) {
+			allocate(2 * count);
+		}
+		int i = count++;
+		randomize(i, shape, rn);
+		styleVersion++;
+		return i;
+	}
+
+	/**
+	 * Grows or shrinks the number of figures. New figures get a random size,
+	 * position, speed and color, and shapes taking turns through every
+	 * ShapeKind. The columns only ever grow, so slots given up are kept for
+	 * when the figures grow again.
+	 *
+	 * @param n
+	 *            The new number of figures, not negative.
+	 */
+	public void setCount(int n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("Negative number of figures: "
+					+ n);
+		}
+		if (n > x.length) {
+			allocate(Math.max(n, 2 * x.length));
+		}
+		if (n > count) {
+			randomize(count, n, false);
+		}
+		if (n != count) {
+			styleVersion++;
+		}
+		count = n;
+	}
+
+	/**
+	 * Gives every figure a new random size, position, speed and color, in
+	 * place, keeping its shape.
+	 */
+	public void reset() {
+		randomize(0, count, true);
+		styleVersion++;
+	}
+
+	/**
+	 * Gives a range of figures a random size, position, speed and color.
+	 * Large ranges are done in chunks on all cores, each chunk with its own
+	 * generator split off in order, so a seeded store always comes out the
+	 * same way.
+	 *
+	 * @param from
+	 *            The first slot.
+	 * @param to
+	 *            The slot after the last one.
+	 * @param keepShapes
+	 *            True to keep the shape of each figure, false to have the
+	 *            shapes take turns through every ShapeKind.
+	 */
+	private void randomize(final int from, final int to,
+			final boolean keepShapes) {
+		int chunks = (to - from + RANDOM_CHUNK - 1) / RANDOM_CHUNK;
+		final SplittableRandom[] randoms = new SplittableRandom[chunks];
+		SplittableRandom random = new SplittableRandom(rn.nextLong());
+		for (int c = 0; c < chunks; c++) {
+			randoms[c] = random.split();
+		}
+		IntStream.range(0, chunks).parallel().forEach(new IntConsumer() {
+			@Override
+			public void accept(int c) {
+				int start = from + c * RANDOM_CHUNK;
+				int end = Math.min(start + RANDOM_CHUNK, to);
+				for (int i = start; i < end; i++) {
+					randomize(i, keepShapes ? kind[i] : i % ShapeKind.count(),
+							randoms[c]);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gives one figure a random size, position, speed and color. The caller
+	 * increments styleVersion.
+	 *
+	 * @param i
+	 *            The slot of the figure.
+	 * @param shape
+	 *            The id of the figure's ShapeKind.
+	 * @param random
+	 *            The source of random numbers.
+	 */
+	private void randomize(int i, int shape, RandomGenerator random) {
+		size[i] = random.nextInt(MAX_SIZE - MIN_SIZE) + MIN_SIZE;
+		x[i] = random.nextInt(100) + 1;
+		y[i] = random.nextInt(100) + 1;
+		speedX[i] = random.nextInt(7) + 2;
+		speedY[i] = random.nextInt(7) + 2;
+		xDelta[i] = speedX[i] * speedPercent / 100;
+		yDelta[i] = speedY[i] * speedPercent / 100;
+		xLimit[i] = 0;
+		yLimit[i] = 0;
+		hue[i] = random.nextFloat();
+		rgb[i] = rgb(hue[i]);
+		kind[i] = (byte) shape;
+		if (width > 0 || height > 0) {
+			setLimits(i, width, height);
+		}
+	}
+
+	/**
+	 * @param i
+	 *            The slot of a figure.
+	 * @return A handle over the figure in the given slot.
+	 */
+	public Model get(int i) {
+		return new Model(this, i);
+	}
+
+	/**
+	 * @return The number of figures.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Sets the "walls" that all the figures should bounce off from.
+	 *
+	 * @param width
+	 *            The position (in pixels) of the wall on the right.
+	 * @param height
+	 *            The position (in pixels) of the floor.
+	 */
+	public void setLimits(int width, int height) {
+		this.width = width;
+		this.height = height;
+		for (int i = 0; i < count; i++) {
+			setLimits(i, width, height);
+		}
+	}
+
+	/**
+	 * @return The width of the View the figures bounce around in.
+	 */
+	int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The height of the View the figures bounce around in.
+	 */
+	int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Sets the "walls" that one figure should bounce off from.
+	 *
+	 * @param i
+	 *            The slot of the figure.
+	 * @param width
+	 *            The position (in pixels) of the wall on the right.
+	 * @param height
+	 *            The position (in pixels) of the floor.
+	 */
+	void setLimits(int i, int width, int height) {
+		int xl = (width - size[i]) / 2;
+		int yl = (height - size[i]) / 2;
+		xLimit[i] = xl;
+		yLimit[i] = yl;
+		if (x[i] > 0) {
+			x[i] = Math.min(x[i], xl);
+		} else {
+			x[i] = Math.max(x[i], -xl);
+		}
+		if (y[i] > 0) {
+			y[i] = Math.min(y[i], yl);
+		} else {
+			y[i] = Math.max(y[i], -yl);
+		}
+	}
+
+	/**
+	 * Sets a new speed for all the figures.
+	 *
+	 * @param percent
+	 *            The speed, as a percentage of each figure's own speed.
+	 */
+	public void setSpeed(int percent) {
+		speedPercent = percent;
+		for (int i = 0; i < count; i++) {
+			xDelta[i] = speedX[i] * percent / 100;
+			yDelta[i] = speedY[i] * percent / 100;
+		}
+	}
+
+	/**
+	 * Gives every figure a new random color.
+	 */
+	public void setColors() {
+		for (int i = 0; i < count; i++) {
+			setHue(i, rn.nextFloat());
+		}
+	}
+
+	/**
+	 * Sets the color of one figure.
+	 *
+	 * @param i
+	 *            The slot of the figure.
+	 * @param h
+	 *            The new hue, between 0 and 1.
+	 */
+	void setHue(int i, float h) {
+		hue[i] = h;
+		rgb[i] = rgb(h);
+		styleVersion++;
+		colorVersion++;
+	}
+
+	/**
+	 * Advances every figure one step in the direction that it is moving. A
+	 * figure that hits a wall changes its direction of movement, and with
+	 * collisions on, so do figures that run into each other.
+	 */
+	public void step() {
+		if (STEPPER != null) {
+			STEPPER.step(this);
+		} else {
+			for (int i = 0; i < count; i++) {
+				step(i);
+			}
+		}
+		if (collider != null) {
+			collider.collide(this);
+		}
+	}
+
+	/**
+	 * Turns collisions between figures on or off. Figures always bounce off
+	 * the walls.
+	 *
+	 * @param tf
+	 *            True to make the figures bounce off one another after every
+	 *            step.
+	 */
+	public void setCollisions(boolean tf) {
+		collider = tf ? new Collider() : null;
+	}
+
+	/**
+	 * @return True if the figures bounce off one another.
+	 */
+	public boolean hasCollisions() {
+		return collider != null;
+	}
+
+	/**
+	 * Advances one figure one step in the direction that it is moving.
+	 *
+	 * @param i
+	 *            The slot of the figure.
+	 */
+	void step(int i) {
+		int xp = x[i] + xDelta[i];
+		if (xp < -xLimit[i] || xp >= xLimit[i]) {
+			xDelta[i] = -xDelta[i];
+			xp += xDelta[i];
+		}
+		x[i] = xp;
+
+		int yp = y[i] + yDelta[i];
+		if (yp < -yLimit[i] || yp >= yLimit[i]) {
+			yDelta[i] = -yDelta[i];
+			yp += yDelta[i];
+		}
+		y[i] = yp;
+	}
+
+	/**
+	 * Grows every column to the given capacity, keeping their contents.
+	 *
+	 * @param capacity
+	 *            The new number of slots.
+	 */
+	private void allocate(int capacity) {
+		if (x != null && capacity <= x.length) {
+			return;
+		}
+		x = grow(x, capacity);
+		y = grow(y, capacity);
+		xDelta = grow(xDelta, capacity);
+		yDelta = grow(yDelta, capacity);
+		speedX = grow(speedX, capacity);
+		speedY = grow(speedY, capacity);
+		size = grow(size, capacity);
+		xLimit = grow(xLimit, capacity);
+		yLimit = grow(yLimit, capacity);
+		rgb = grow(rgb, capacity);
+		hue = hue == null ? new float[capacity] : Arrays.copyOf(hue, capacity);
+		kind = kind == null ? new byte[capacity] : Arrays.copyOf(kind, capacity);
+	}
+
+	/**
+	 * @return A VectorStepper, or null if the Vector API cannot be used here.
+	 */
+	private static Stepper vectorStepper() {
+		if (!Boolean.parseBoolean(System.getProperty("kaleidoscope.vector",
+				"true"))
+				|| !ModuleLayer.boot().findModule("jdk.incubator.vector")
+						.isPresent()) {
+			return null;
+		}
+		try {
+			return (Stepper) Class.forName("Kaleidoscope.VectorStepper")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param h
+	 *            A hue, between 0 and 1.
+	 * @return The color of that hue, to the nearest of HUES.
+	 */
+	static int rgb(float h) {
+		return HUE_RGB[Math.round(h * HUES)];
+	}
+
+	private static int[] hueTable() {
+		int[] table = new int[HUES + 1];
+		for (int k = 0; k <= HUES; k++) {
+			table[k] = Color.HSBtoRGB((float) k / HUES, SATURATION, LUMINANCE);
+		}
+		return table;
+	}
+
+	private static int[] grow(int[] column, int capacity) {
+		return column == null ? new int[capacity] : Arrays.copyOf(column,
+				capacity);
+	}
+
+	/**
+	 * Something that advances every figure of a FigureStore one step, exactly
+	 * as step(int) would advance each of them.
+	 */
+	interface Stepper {
+		/**
+		 * @param figures
+		 *            The figures to advance.
+		 */
+		void step(FigureStore figures);
+	}
+}
@@ -0,0 +1,429 @@
+package Kaleidoscope;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The FrameStats record where the time of each tick and each frame goes: how
+ * long the figures took to step and the Listeners to be told, how long the
+ * frame took to draw, how many figures and reflected instances it filled, and
+ * how many bytes the drawing thread allocated meanwhile. A frame that takes
+ * longer than the frame budget is late; a tick that was never drawn because
+ * the next one came first is dropped.
+ *
+ * The SimulationClock takes the time of a tick in three places: before it
+ * applies the queued changes, after it has stepped, published and recorded
+ * the figures ("step"), and after it has told the Listeners ("notify"). The
+ * View takes the time and the allocated bytes of a frame as it starts to
+ * draw and after the frame is done, without the statistics drawn over it.
+ *
+ * The last HISTORY frames are kept for the on-screen statistics and for
+ * exporting as CSV, one line per frame: frame, time (ms since the start), tick,
+ * step, notify and render (ms), figures, instances, late (0 or 1), dropped
+ * and allocated (bytes). Every tick is also emitted as a Kaleidoscope.Tick
+ * JFR event (tick, figures, step, notify), and every frame as a
+ * Kaleidoscope.Frame event (frame, tick, figures, instances, allocated, late,
+ * dropped, with its duration as the render time). That costs nothing unless
+ * a flight recording with those events is running.
+ *
+ * @author Martha Trevino
+ */
+class FrameStats {
+
+	/** Number of frames kept. */
+	static final int HISTORY = 8192;
+
+	/** How often the on-screen statistics are worked out again. */
+	private static final long SUMMARY_NANOS = 250000000L;
+
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+	private static final EventType FRAME_EVENT = EventType
+			.getEventType(FrameEvent.class);
+	private static final EventType TICK_EVENT = EventType
+			.getEventType(TickEvent.class);
+
+	private final long origin = System.nanoTime();
+
+	/** Frame f is in slot f % HISTORY of every column. */
+	private final long[] frameEnd = new long[HISTORY];
+	private final long[] frameTick = new long[HISTORY];
+	private final long[] frameSimulate = new long[HISTORY];
+	private final long[] frameNotify = new long[HISTORY];
+	private final long[] frameRender = new long[HISTORY];
+	private final long[] frameAllocated = new long[HISTORY];
+	private final int[] frameFigures = new int[HISTORY];
+	private final int[] frameInstances = new int[HISTORY];
+	private final int[] frameDropped = new int[HISTORY];
+	private final boolean[] frameLate = new boolean[HISTORY];
+	private long frames;
+	private long lateFrames;
+	private long droppedTicks;
+
+	/** A frame is late after budget, or after a tick if budget is 0. */
+	private long budget;
+	private long tickPeriod = SimulationClock.TICK_MILLIS * 1000000L;
+
+	/** The tick in progress, on the clock thread. */
+	private long tickStart;
+	private long tickStepped;
+	private TickEvent tickEvent;
+
+	/** The last tick that was finished. */
+	private long ticks;
+	private long simulateNanos;
+	private long notifyNanos;
+
+	/** The frame in progress, on the drawing thread. */
+	private long frameStart;
+	private long allocatedAtStart;
+	private FrameEvent frameEvent;
+	/** The tick shown by the frame before. */
+	private long lastTickShown;
+
+	/** The frames of the last second, as last added up. */
+	private int recentFrames;
+	private long recentRender;
+	private long recentAllocated;
+	private int recentLate;
+	private int recentDropped;
+
+	private String[] summary = new String[0];
+	private long summaryTime = -SUMMARY_NANOS;
+
+	private static com.sun.management.ThreadMXBean threads() {
+		Object bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			if (threads.isThreadAllocatedMemorySupported()
+					&& threads.isThreadAllocatedMemoryEnabled()) {
+				return threads;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return Bytes allocated so far by the calling thread, or 0 if the JVM
+	 *         does not count them.
+	 */
+	private static long allocatedBytes() {
+		return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+	/**
+	 * Sets how long a frame may take before it counts as late.
+	 *
+	 * @param nanos
+	 *            The frame budget, in nanoseconds, or 0 for the time between
+	 *            two ticks, whatever the tick rate
+	 */
+	synchronized void setFrameBudget(long nanos) {
+		budget = nanos;
+	}
+
+	/**
+	 * Called by the SimulationClock when it starts recording here, and
+	 * whenever its tick rate changes.
+	 *
+	 * @param nanos
+	 *            The time between two ticks, in nanoseconds
+	 */
+	synchronized void setTickPeriod(long nanos) {
+		tickPeriod = nanos;
+	}
+
+	/**
+	 * Called by the SimulationClock before it steps the figures.
+	 */
+	synchronized void tickStarted() {
+		if (TICK_EVENT.isEnabled()) {
+			tickEvent = new TickEvent();
+			tickEvent.begin();
+		}
+		tickStart = System.nanoTime();
+	}
+
+	/**
+	 * Called by the SimulationClock after it has stepped the figures, before
+	 * it tells the Listeners.
+	 */
+	synchronized void tickStepped() {
+		tickStepped = System.nanoTime();
+	}
+
+	/**
+	 * Called by the SimulationClock after it has told the Listeners.
+	 *
+	 * @param figures
+	 *            The number of figures stepped
+	 */
+	synchronized void tickDone(int figures) {
+		long now = System.nanoTime();
+		ticks++;
+		simulateNanos = tickStepped - tickStart;
+		notifyNanos = now - tickStepped;
+		if (tickEvent != null) {
+			tickEvent.end();
+			tickEvent.tick = ticks;
+			tickEvent.figures = figures;
+			tickEvent.simulateNanos = simulateNanos;
+			tickEvent.notifyNanos = notifyNanos;
+			tickEvent.commit();
+			tickEvent = null;
+		}
+	}
+
+	/**
+	 * Called by the View before it draws a frame.
+	 */
+	synchronized void beginFrame() {
+		if (FRAME_EVENT.isEnabled()) {
+			frameEvent = new FrameEvent();
+			frameEvent.begin();
+		}
+		allocatedAtStart = allocatedBytes();
+		frameStart = System.nanoTime();
+	}
+
+	/**
+	 * Called by the View after it has drawn a frame, on the same thread as
+	 * beginFrame().
+	 *
+	 * @param figures
+	 *            The number of figures drawn
+	 * @param instances
+	 *            The number of reflected instances of them that were filled
+	 */
+	synchronized void endFrame(int figures, int instances) {
+		long now = System.nanoTime();
+		long allocated = allocatedBytes() - allocatedAtStart;
+		int f = (int) (frames % HISTORY);
+		int dropped = (int) Math.max(ticks - lastTickShown - 1, 0);
+		boolean late = now - frameStart > (budget > 0 ? budget
+				: tickPeriod);
+		frameEnd[f] = now - origin;
+		frameTick[f] = ticks;
+		frameSimulate[f] = simulateNanos;
+		frameNotify[f] = notifyNanos;
+		frameRender[f] = now - frameStart;
+		frameAllocated[f] = allocated;
+		frameFigures[f] = figures;
+		frameInstances[f] = instances;
+		frameDropped[f] = dropped;
+		frameLate[f] = late;
+		frames++;
+		droppedTicks += dropped;
+		if (late) {
+			lateFrames++;
+		}
+		lastTickShown = ticks;
+
+		if (frameEvent != null) {
+			frameEvent.end();
+			frameEvent.frame = frames;
+			frameEvent.tick = ticks;
+			frameEvent.figures = figures;
+			frameEvent.instances = instances;
+			frameEvent.allocated = allocated;
+			frameEvent.late = late;
+			frameEvent.dropped = dropped;
+			frameEvent.commit();
+			frameEvent = null;
+		}
+	}
+
+	/**
+	 * @return The number of frames drawn so far.
+	 */
+	synchronized long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Adds up the frames that ended in the last second before a time.
+	 *
+	 * @param now
+	 *            The time, in nanoseconds since the FrameStats were made
+	 */
+	private void sumLastSecond(long now) {
+		recentFrames = 0;
+		recentRender = 0;
+		recentAllocated = 0;
+		recentLate = 0;
+		recentDropped = 0;
+		long first = Math.max(frames - HISTORY, 0);
+		for (long frame = frames - 1; frame >= first; frame--) {
+			int f = (int) (frame % HISTORY);
+			if (now - frameEnd[f] > 1000000000L) {
+				break;
+			}
+			recentFrames++;
+			recentRender += frameRender[f];
+			recentAllocated += frameAllocated[f];
+			recentDropped += frameDropped[f];
+			if (frameLate[f]) {
+				recentLate++;
+			}
+		}
+	}
+
+	/**
+	 * Sums up the frames of the last second for the on-screen statistics.
+	 * This is only worked out a few times a second, so the numbers can be
+	 * read.
+	 *
+	 * @return Lines of text
+	 */
+	synchronized String[] summary() {
+		long now = System.nanoTime() - origin;
+		if (now - summaryTime < SUMMARY_NANOS) {
+			return summary;
+		}
+		summaryTime = now;
+		sumLastSecond(now);
+		int n = recentFrames;
+		summary = new String[] {
+				String.format(Locale.ROOT,
+						"%d fps   step %.2f ms   notify %.2f ms   render %.2f ms",
+						n, simulateNanos / 1e6, notifyNanos / 1e6,
+						n == 0 ? 0 : recentRender / 1e6 / n),
+				String.format(Locale.ROOT,
+						"%d figures   %d instances   %.1f KB/frame",
+						getFigures(), getInstances(),
+						n == 0 ? 0 : recentAllocated / 1024.0 / n),
+				String.format(Locale.ROOT,
+						"late %d (%d total)   dropped %d (%d total)",
+						recentLate, lateFrames, recentDropped, droppedTicks) };
+		return summary;
+	}
+
+	/**
+	 * @return The number of frames drawn in the last second
+	 */
+	synchronized int getFramesPerSecond() {
+		sumLastSecond(System.nanoTime() - origin);
+		return recentFrames;
+	}
+
+	/**
+	 * @return How long the frames of the last second took to draw, on
+	 *         average, in milliseconds
+	 */
+	synchronized double getRenderMillis() {
+		sumLastSecond(System.nanoTime() - origin);
+		return recentFrames == 0 ? 0 : recentRender / 1e6 / recentFrames;
+	}
+
+	/**
+	 * @return How long the last tick took to step the figures and tell the
+	 *         Listeners, in milliseconds
+	 */
+	synchronized double getTickMillis() {
+		return (simulateNanos + notifyNanos) / 1e6;
+	}
+
+	/**
+	 * @return The number of figures drawn by the last frame
+	 */
+	synchronized int getFigures() {
+		return frames == 0 ? 0 : frameFigures[(int) ((frames - 1) % HISTORY)];
+	}
+
+	/**
+	 * @return The number of reflected instances filled by the last frame
+	 */
+	synchronized int getInstances() {
+		return frames == 0 ? 0 : frameInstances[(int) ((frames - 1) % HISTORY)];
+	}
+
+	/**
+	 * Writes the frames that are kept as comma separated values, one line per
+	 * frame with a header line first. Times are in milliseconds.
+	 *
+	 * @param out
+	 *            Where to write them
+	 */
+	synchronized void writeCsv(Writer out) throws IOException {
+		PrintWriter csv = new PrintWriter(out);
+		csv.println("frame,time,tick,step,notify,render,figures,instances,"
+				+ "late,dropped,allocated");
+		for (long frame = Math.max(frames - HISTORY, 0); frame < frames; frame++) {
+			int f = (int) (frame % HISTORY);
+			csv.println(String.format(Locale.ROOT,
+					"%d,%.3f,%d,%.4f,%.4f,%.4f,%d,%d,%d,%d,%d", frame,
+					frameEnd[f] / 1e6, frameTick[f], frameSimulate[f] / 1e6,
+					frameNotify[f] / 1e6, frameRender[f] / 1e6,
+					frameFigures[f], frameInstances[f], frameLate[f] ? 1 : 0,
+					frameDropped[f], frameAllocated[f]));
+		}
+		csv.flush();
+		if (csv.checkError()) {
+			throw new IOException("Could not write the frame statistics");
+		}
+	}
+
+	/**
+	 * A frame drawn by the View, for flight recordings.
+	 */
+	@Name("Kaleidoscope.Frame")
+	@Label("Frame")
+	@Category("Kaleidoscope")
+	@Description("One frame drawn by the View")
+	@StackTrace(false)
+	static class FrameEvent extends Event {
+		@Label("Frame")
+		long frame;
+		@Label("Tick")
+		@Description("The last tick of the simulation when the frame was drawn")
+		long tick;
+		@Label("Figures")
+		int figures;
+		@Label("Instances")
+		@Description("Reflected figures filled")
+		int instances;
+		@Label("Allocated")
+		@Description("Bytes allocated while drawing the frame")
+		@DataAmount
+		long allocated;
+		@Label("Late")
+		@Description("True if the frame took longer than the frame budget")
+		boolean late;
+		@Label("Dropped")
+		@Description("Ticks since the frame before that were never drawn")
+		int dropped;
+	}
+
+	/**
+	 * A tick of the SimulationClock, for flight recordings.
+	 */
+	@Name("Kaleidoscope.Tick")
+	@Label("Tick")
+	@Category("Kaleidoscope")
+	@Description("One step of every figure, and the notification of the View")
+	@StackTrace(false)
+	static class TickEvent extends Event {
+		@Label("Tick")
+		long tick;
+		@Label("Figures")
+		int figures;
+		@Label("Step")
+		@Timespan
+		long simulateNanos;
+		@Label("Notify")
+		@Timespan
+		long notifyNanos;
+	}
+}
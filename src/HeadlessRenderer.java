@@ -0,0 +1,599 @@
+package Kaleidoscope;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * The HeadlessRenderer runs the kaleidoscope without a window and writes the
+ * frames to disk, either as a numbered sequence of PNG files or as one
+ * animated GIF. It uses the same FigureStore and View drawing as the Swing
+ * program.
+ *
+ * Frames are drawn on the calling thread and encoded on worker threads. A
+ * fixed pool of frame images is recycled between them, so memory use does not
+ * depend on the number of frames.
+ *
+ * <pre>
+ * java -cp classes Kaleidoscope.HeadlessRenderer --frames 250 --out kaleidoscope.gif
+ * </pre>
+ *
+ * With --record every tick is also written to a Recording; with --replay the
+ * frames are drawn from a Recording instead, starting at the tick given by
+ * --from, so a run can be drawn again with other reflections or shapes.
+ *
+ * @author Martha Trevino
+ */
+public class HeadlessRenderer {
+
+	int width = 600;
+	int height = 600;
+	int figureCount = 60;
+	int reflections = 8;
+	int shapeMask = ShapeKind.TRIANGLE.mask();
+	int ticksPerFrame = 1;
+	long seed = System.nanoTime();
+	boolean mirror = false;
+	boolean raster = false;
+	boolean sprites = false;
+	boolean indexed = false;
+	boolean trails = false;
+	boolean collisions = false;
+	/** The frame budget of a QualityGovernor, in milliseconds, or 0 for none. */
+	double budget = 0;
+	int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	/** Where to record every tick, or null. */
+	File record;
+	/** The recording to draw the frames from, or null to simulate. */
+	File replay;
+	/** The first tick to draw from the recording, or -1 for the oldest. */
+	long from = -1;
+
+	/**
+	 * Renders a kaleidoscope to disk.
+	 *
+	 * @param args
+	 *            Options, see usage().
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		HeadlessRenderer renderer = new HeadlessRenderer();
+		int frames = 250;
+		File out = new File("kaleidoscope.gif");
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("--mirror")) {
+				renderer.mirror = true;
+				continue;
+			}
+			if (option.equals("--raster")) {
+				renderer.raster = true;
+				continue;
+			}
+			if (option.equals("--sprites")) {
+				renderer.sprites = true;
+				continue;
+			}
+			if (option.equals("--indexed")) {
+				renderer.indexed = true;
+				continue;
+			}
+			if (option.equals("--trails")) {
+				renderer.trails = true;
+				continue;
+			}
+			if (option.equals("--collisions")) {
+				renderer.collisions = true;
+				continue;
+			}
+			if (i + 1 == args.length) {
+				usage();
+				return;
+			}
+			String value = args[++i];
+			if (option.equals("--frames")) {
+				frames = Integer.parseInt(value);
+			} else if (option.equals("--out")) {
+				out = new File(value);
+			} else if (option.equals("--record")) {
+				renderer.record = new File(value);
+			} else if (option.equals("--replay")) {
+				renderer.replay = new File(value);
+			} else if (option.equals("--from")) {
+				renderer.from = Long.parseLong(value);
+			} else if (!renderer.setOption(option, value)) {
+				usage();
+				return;
+			}
+		}
+		long start = System.nanoTime();
+		frames = renderer.render(frames, out);
+		System.out.printf("%d frames in %.1f s%n", frames,
+				(System.nanoTime() - start) / 1e9);
+	}
+
+	private static void usage() {
+		System.err.println("Options: --frames N --out file.gif|directory"
+				+ " --width W --height H --figures N --reflections N"
+				+ " --shapes ball,triangle,... --ticks N --seed N"
+				+ " --threads N --budget MS --mirror --raster --sprites"
+				+ " --indexed --trails --collisions --record file.rec"
+				+ " --replay file.rec --from TICK");
+	}
+
+	/**
+	 * Sets one of the options shared by the headless tools.
+	 *
+	 * @param option
+	 *            The name of the option, such as "--width"
+	 * @param value
+	 *            Its value
+	 * @return False if there is no such option
+	 */
+	boolean setOption(String option, String value) {
+		if (option.equals("--width")) {
+			width = Integer.parseInt(value);
+		} else if (option.equals("--height")) {
+			height = Integer.parseInt(value);
+		} else if (option.equals("--figures")) {
+			figureCount = Integer.parseInt(value);
+		} else if (option.equals("--reflections")) {
+			reflections = Integer.parseInt(value);
+		} else if (option.equals("--shapes")) {
+			shapeMask = parseShapes(value);
+		} else if (option.equals("--ticks")) {
+			ticksPerFrame = Integer.parseInt(value);
+		} else if (option.equals("--seed")) {
+			seed = Long.parseLong(value);
+		} else if (option.equals("--threads")) {
+			threads = Integer.parseInt(value);
+		} else if (option.equals("--budget")) {
+			budget = Double.parseDouble(value);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param names
+	 *            Comma separated ShapeKind names, such as "ball,triangle"
+	 * @return The mask of those kinds
+	 */
+	static int parseShapes(String names) {
+		int mask = 0;
+		for (String name : names.split(",")) {
+			mask |= ShapeKind.forName(name.trim()).mask();
+		}
+		return mask;
+	}
+
+	/**
+	 * Makes a new set of figures, set up from the options, and a clock to
+	 * advance them. The clock is never started; it is ticked by hand.
+	 *
+	 * @return The SimulationClock, driving a new FigureStore
+	 */
+	SimulationClock createClock() {
+		return createClock(seed);
+	}
+
+	/**
+	 * Makes a new set of figures, set up from the options but for the seed,
+	 * and a clock to advance them.
+	 *
+	 * @param seed
+	 *            The seed of the figures' sizes, places, speeds and colors
+	 * @return The SimulationClock, driving a new FigureStore
+	 */
+	SimulationClock createClock(long seed) {
+		FigureStore figures = new FigureStore(figureCount, new Random(seed));
+		for (int i = 0; i < figureCount; i++) {
+			figures.add(i % ShapeKind.count());
+		}
+		figures.setCollisions(collisions);
+		SimulationClock clock = new SimulationClock(figures);
+		clock.setLimits(width, height);
+		return clock;
+	}
+
+	/**
+	 * Makes a View of the figures of a clock, set up from the options.
+	 *
+	 * @param clock
+	 *            The clock publishing the figures
+	 * @return The View
+	 */
+	View createView(SimulationClock clock) {
+		View view = new View(clock.getExchange());
+		view.setSize(width, height);
+		view.setReflections(reflections);
+		view.setShapeMask(shapeMask);
+		view.setMirror(mirror);
+		view.setRaster(raster);
+		view.setSprites(sprites);
+		view.setIndexed(indexed);
+		view.setTrails(trails);
+		if (budget > 0) {
+			view.setGovernor(new QualityGovernor((long) (budget * 1e6)));
+		}
+		return view;
+	}
+
+	/**
+	 * Renders frames and writes them out.
+	 *
+	 * @param frames
+	 *            How many frames to render
+	 * @param out
+	 *            A file ending in .gif for an animated GIF, otherwise a
+	 *            directory for a PNG sequence
+	 * @return The number of frames rendered, fewer than asked for when a
+	 *         replay runs out of recorded ticks
+	 */
+	public int render(int frames, File out) throws IOException,
+			InterruptedException {
+		boolean gif = out.getName().toLowerCase(Locale.ROOT).endsWith(".gif");
+		if (!gif && !out.isDirectory() && !out.mkdirs()) {
+			throw new IOException("Cannot create directory " + out);
+		}
+		Recording playback = null;
+		long tick = 0;
+		if (replay != null) {
+			playback = Recording.open(replay);
+			if (playback.last() < 0) {
+				playback.close();
+				throw new IOException("Nothing recorded in " + replay);
+			}
+			width = playback.getWidth();
+			height = playback.getHeight();
+			tick = Math.max(from, playback.first());
+		}
+		SimulationClock clock = createClock();
+		View view = createView(clock);
+		Recording recording = null;
+		if (record != null) {
+			recording = new Recording(record,
+					Recording.DEFAULT_MEGABYTES << 20, figureCount);
+			clock.setRecording(recording);
+		}
+
+		// Frames waiting to be drawn, and encodings waiting to be written
+		int pool = 2 * threads + 2;
+		BlockingQueue<BufferedImage> free = new ArrayBlockingQueue<BufferedImage>(
+				pool);
+		for (int i = 0; i < pool; i++) {
+			free.add(new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_RGB));
+		}
+		BlockingQueue<Future<BufferedImage>> pending = new ArrayBlockingQueue<Future<BufferedImage>>(
+				pool);
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		FrameWriter writer = new FrameWriter(pending, gif ? new GifSequence(
+				out, SimulationClock.TICK_MILLIS * ticksPerFrame) : null);
+		Thread writerThread = new Thread(writer, "Kaleidoscope writer");
+		writerThread.start();
+
+		int frame = 0;
+		try {
+			for (; frame < frames && writer.failure == null; frame++) {
+				if (playback != null && !clock.showRecorded(playback, tick)) {
+					break;
+				}
+				BufferedImage image = free.take();
+				Graphics2D g = image.createGraphics();
+				view.paint(g);
+				g.dispose();
+				Callable<BufferedImage> encode = gif ? new Quantize(image,
+						free) : new WritePng(image, free, new File(out,
+						String.format("frame-%06d.png", frame)));
+				pending.put(workers.submit(encode));
+				if (playback != null) {
+					tick += ticksPerFrame;
+					continue;
+				}
+				for (int t = 0; t < ticksPerFrame; t++) {
+					clock.tick();
+				}
+			}
+		} finally {
+			writer.finish();
+			writerThread.join();
+			workers.shutdown();
+			if (playback != null) {
+				playback.close();
+			}
+			if (recording != null) {
+				recording.close();
+			}
+		}
+		if (writer.failure != null) {
+			throw new IOException("Could not write frames", writer.failure);
+		}
+		if (recording != null && recording.getFailure() != null) {
+			throw new IOException("Could not record", recording.getFailure());
+		}
+		return frame;
+	}
+
+	/**
+	 * Takes encoded frames in order and writes them out. After a failure it
+	 * keeps taking frames, without writing them, so that the drawing thread is
+	 * never left waiting.
+	 */
+	private static class FrameWriter implements Runnable {
+		private final BlockingQueue<Future<BufferedImage>> pending;
+		private final GifSequence gif;
+		volatile Throwable failure;
+
+		FrameWriter(BlockingQueue<Future<BufferedImage>> pending,
+				GifSequence gif) {
+			this.pending = pending;
+			this.gif = gif;
+		}
+
+		/**
+		 * Tells the writer that no more frames are coming than are already
+		 * pending.
+		 */
+		void finish() throws InterruptedException {
+			pending.put(DONE);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Future<BufferedImage> next;
+				while ((next = pending.take()) != DONE) {
+					try {
+						BufferedImage encoded = next.get();
+						if (gif != null && failure == null) {
+							gif.write(encoded);
+						}
+					} catch (ExecutionException e) {
+						fail(e.getCause());
+					} catch (IOException e) {
+						fail(e);
+					}
+				}
+			} catch (InterruptedException e) {
+				fail(e);
+			} finally {
+				if (gif != null) {
+					try {
+						gif.close();
+					} catch (IOException e) {
+						fail(e);
+					}
+				}
+			}
+		}
+
+		private void fail(Throwable e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+	}
+
+	/** Put in the queue after the last frame. */
+	private static final Future<BufferedImage> DONE = new FutureTask<BufferedImage>(
+			new Callable<BufferedImage>() {
+				@Override
+				public BufferedImage call() {
+					return null;
+				}
+			});
+
+	/**
+	 * Writes one frame as a PNG file and hands the image back.
+	 */
+	private static class WritePng implements Callable<BufferedImage> {
+		private final BufferedImage image;
+		private final BlockingQueue<BufferedImage> free;
+		private final File file;
+
+		WritePng(BufferedImage image, BlockingQueue<BufferedImage> free,
+				File file) {
+			this.image = image;
+			this.free = free;
+			this.file = file;
+		}
+
+		@Override
+		public BufferedImage call() throws IOException {
+			try {
+				ImageIO.write(image, "png", file);
+			} finally {
+				free.add(image);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Turns one frame into an indexed image for the GIF and hands the frame
+	 * back. Figures are drawn in flat colors, so a frame usually has far fewer
+	 * than 256 colors and gets an exact palette; otherwise it is mapped onto a
+	 * 6x6x6 color cube.
+	 */
+	private static class Quantize implements Callable<BufferedImage> {
+		private final BufferedImage image;
+		private final BlockingQueue<BufferedImage> free;
+
+		Quantize(BufferedImage image, BlockingQueue<BufferedImage> free) {
+			this.image = image;
+			this.free = free;
+		}
+
+		@Override
+		public BufferedImage call() {
+			try {
+				return quantize(image);
+			} finally {
+				free.add(image);
+			}
+		}
+	}
+
+	/**
+	 * @param image
+	 *            An RGB image
+	 * @return The same picture as an indexed image of at most 256 colors
+	 */
+	static BufferedImage quantize(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+		byte[] indices = new byte[rgb.length];
+
+		// Open addressing table from color to palette index
+		int[] keys = new int[1024];
+		int[] values = new int[1024];
+		Arrays.fill(values, -1);
+		int[] palette = new int[256];
+		int colors = 0;
+		boolean exact = true;
+		for (int i = 0; i < rgb.length && exact; i++) {
+			int color = rgb[i] & 0xFFFFFF;
+			int slot = (color * 0x9E3779B1) >>> 22;
+			while (values[slot] >= 0 && keys[slot] != color) {
+				slot = (slot + 1) & 1023;
+			}
+			if (values[slot] < 0) {
+				if (colors == 256) {
+					exact = false;
+					break;
+				}
+				keys[slot] = color;
+				values[slot] = colors;
+				palette[colors++] = color;
+			}
+			indices[i] = (byte) values[slot];
+		}
+		if (!exact) {
+			colors = 216;
+			for (int i = 0; i < colors; i++) {
+				palette[i] = (i / 36 * 51) << 16 | (i / 6 % 6 * 51) << 8
+						| (i % 6 * 51);
+			}
+			for (int i = 0; i < rgb.length; i++) {
+				int r = ((rgb[i] >> 16 & 0xFF) + 25) / 51;
+				int g = ((rgb[i] >> 8 & 0xFF) + 25) / 51;
+				int b = ((rgb[i] & 0xFF) + 25) / 51;
+				indices[i] = (byte) (r * 36 + g * 6 + b);
+			}
+		}
+		IndexColorModel model = new IndexColorModel(8, Math.max(colors, 2),
+				palette, 0, false, -1, DataBufferByte.TYPE_BYTE);
+		BufferedImage indexed = new BufferedImage(width, height,
+				BufferedImage.TYPE_BYTE_INDEXED, model);
+		byte[] data = ((DataBufferByte) indexed.getRaster().getDataBuffer())
+				.getData();
+		System.arraycopy(indices, 0, data, 0, indices.length);
+		return indexed;
+	}
+
+	/**
+	 * An animated GIF that is written one frame at a time and loops forever.
+	 */
+	static class GifSequence {
+		private final ImageWriter writer;
+		private final ImageOutputStream stream;
+		private final int delay;
+		private boolean first = true;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param file
+		 *            The file to write
+		 * @param delayMillis
+		 *            Time between frames, in milliseconds
+		 */
+		GifSequence(File file, int delayMillis) throws IOException {
+			writer = ImageIO.getImageWritersByFormatName("gif").next();
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Cannot replace " + file);
+			}
+			stream = ImageIO.createImageOutputStream(file);
+			writer.setOutput(stream);
+			writer.prepareWriteSequence(null);
+			delay = Math.max(1, delayMillis / 10);
+		}
+
+		/**
+		 * Appends a frame.
+		 *
+		 * @param image
+		 *            An indexed image
+		 */
+		void write(BufferedImage image) throws IOException {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			IIOMetadata metadata = writer.getDefaultImageMetadata(
+					new ImageTypeSpecifier(image), param);
+			String format = metadata.getNativeMetadataFormatName();
+			IIOMetadataNode root = (IIOMetadataNode) metadata
+					.getAsTree(format);
+
+			IIOMetadataNode control = new IIOMetadataNode(
+					"GraphicControlExtension");
+			control.setAttribute("disposalMethod", "none");
+			control.setAttribute("userInputFlag", "FALSE");
+			control.setAttribute("transparentColorFlag", "FALSE");
+			control.setAttribute("delayTime", Integer.toString(delay));
+			control.setAttribute("transparentColorIndex", "0");
+			root.appendChild(control);
+
+			if (first) {
+				IIOMetadataNode extensions = new IIOMetadataNode(
+						"ApplicationExtensions");
+				IIOMetadataNode loop = new IIOMetadataNode(
+						"ApplicationExtension");
+				loop.setAttribute("applicationID", "NETSCAPE");
+				loop.setAttribute("authenticationCode", "2.0");
+				loop.setUserObject(new byte[] { 1, 0, 0 });
+				extensions.appendChild(loop);
+				root.appendChild(extensions);
+				first = false;
+			}
+			metadata.setFromTree(format, root);
+			writer.writeToSequence(new IIOImage(image, null, metadata), param);
+		}
+
+		/**
+		 * Finishes the file.
+		 */
+		void close() throws IOException {
+			try {
+				writer.endWriteSequence();
+			} finally {
+				stream.close();
+				writer.dispose();
+			}
+		}
+	}
+}
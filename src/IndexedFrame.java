@@ -0,0 +1,134 @@
+package Kaleidoscope;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * An IndexedFrame is a picture in which every pixel holds the palette slot of
+ * the figure that covers it, instead of a color. The outlines are filled only
+ * when the figures move; changing the colors only means writing a new
+ * palette, however many pixels the figures cover.
+ *
+ * Slot 0 is the background. With fewer than 256 slots the frame is an 8 bit
+ * image with an IndexColorModel, and a new palette is just a new color model
+ * over the same pixels. With more, every pixel is looked up in the palette
+ * when the colors change, which is still far less work than filling the
+ * outlines again.
+ *
+ * @author Martha Trevino
+ */
+class IndexedFrame {
+
+	/** The most slots there can be, the background included. */
+	static final int MAX_SLOTS = 65536;
+
+	/** Fills the slots, as if they were colors. */
+	private final SoftwareRasterizer rasterizer = new SoftwareRasterizer();
+
+	private int slots;
+
+	/** The color of each slot. */
+	private int[] palette = new int[256];
+	private boolean paletteChanged = true;
+
+	/** The slots of the pixels, for fewer than 256 slots. */
+	private WritableRaster indices;
+	/** The slots of the pixels, for more. */
+	private int[] slotPixels;
+	private BufferedImage rgbImage;
+	private int[] rgbPixels;
+
+	/** The picture in the colors of the palette. */
+	private BufferedImage image;
+
+	/**
+	 * Fills the outlines of the figures with their slots.
+	 *
+	 * @param polygons
+	 *            The outlines, bottom one first, each "colored" with the slot
+	 *            of its figure
+	 * @param width
+	 *            Width of the frame
+	 * @param height
+	 *            Height of the frame
+	 * @param slots
+	 *            The number of slots used, the background included
+	 */
+	void rasterize(PolygonBuffer polygons, int width, int height, int slots) {
+		width = Math.max(width, 1);
+		height = Math.max(height, 1);
+		slotPixels = ((DataBufferInt) rasterizer.render(polygons, width,
+				height, 0).getRaster().getDataBuffer()).getData();
+		if (palette.length < slots) {
+			palette = Arrays.copyOf(palette,
+					Math.max(slots, 2 * palette.length));
+		}
+		if (slots <= 256) {
+			if (indices == null || indices.getWidth() != width
+					|| indices.getHeight() != height) {
+				indices = new IndexColorModel(8, 256, palette, 0, false, -1,
+						DataBuffer.TYPE_BYTE).createCompatibleWritableRaster(
+						width, height);
+			}
+			byte[] bytes = ((DataBufferByte) indices.getDataBuffer())
+					.getData();
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = (byte) slotPixels[i];
+			}
+		} else if (rgbImage == null || rgbImage.getWidth() != width
+				|| rgbImage.getHeight() != height) {
+			rgbImage = new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_RGB);
+			rgbPixels = ((DataBufferInt) rgbImage.getRaster()
+					.getDataBuffer()).getData();
+		}
+		this.slots = slots;
+		paletteChanged = true;
+	}
+
+	/**
+	 * @return The palette, with room for every slot, to be written to. Call
+	 *         paletteChanged() afterwards.
+	 */
+	int[] palette() {
+		return palette;
+	}
+
+	/**
+	 * Says that the palette has been written to.
+	 */
+	void paletteChanged() {
+		paletteChanged = true;
+	}
+
+	/**
+	 * @return The picture, in the colors of the palette as it is now
+	 */
+	BufferedImage image() {
+		if (!paletteChanged) {
+			return image;
+		}
+		if (slots <= 256) {
+			image = new BufferedImage(new IndexColorModel(8, 256, palette, 0,
+					false, -1, DataBuffer.TYPE_BYTE), indices, false, null);
+		} else {
+			final int[] colors = palette;
+			final int[] from = slotPixels;
+			Arrays.parallelSetAll(rgbPixels, new IntUnaryOperator() {
+				@Override
+				public int applyAsInt(int i) {
+					return colors[from[i]];
+				}
+			});
+			image = rgbImage;
+		}
+		paletteChanged = false;
+		return image;
+	}
+}
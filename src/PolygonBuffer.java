@@ -0,0 +1,151 @@
+package Kaleidoscope;
+
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+
+/**
+ * A PolygonBuffer collects the outlines of the reflected figures of one frame
+ * as flat arrays of vertices, with a color and a bounding box per polygon. The
+ * arrays only ever grow, so once they are big enough a frame can be collected
+ * without allocating anything.
+ *
+ * @author Martha Trevino
+ */
+class PolygonBuffer {
+
+	/** Vertex coordinates, polygon after polygon. */
+	float[] xs = new float[1024];
+	float[] ys = new float[1024];
+	int vertices;
+
+	/** Polygon p has vertices start[p] up to, but not including, start[p+1]. */
+	int[] start = new int[129];
+	int[] color = new int[128];
+	int[] minX = new int[128];
+	int[] minY = new int[128];
+	int[] maxX = new int[128];
+	int[] maxY = new int[128];
+	int polygons;
+
+	/**
+	 * Forgets every polygon, keeping the arrays for the next frame.
+	 */
+	void reset() {
+		vertices = 0;
+		polygons = 0;
+	}
+
+	/**
+	 * Starts a new polygon.
+	 *
+	 * @param rgb
+	 *            The color of the polygon.
+	 */
+	void begin(int rgb) {
+		if (polygons + 1 >= start.length) {
+			int capacity = 2 * start.length;
+			start = Arrays.copyOf(start, capacity + 1);
+			color = Arrays.copyOf(color, capacity);
+			minX = Arrays.copyOf(minX, capacity);
+			minY = Arrays.copyOf(minY, capacity);
+			maxX = Arrays.copyOf(maxX, capacity);
+			maxY = Arrays.copyOf(maxY, capacity);
+		}
+		start[polygons] = vertices;
+		color[polygons] = rgb;
+	}
+
+	/**
+	 * Adds a vertex to the polygon that was begun last.
+	 *
+	 * @param x
+	 *            X coordinate
+	 * @param y
+	 *            Y coordinate
+	 */
+	void add(float x, float y) {
+		if (vertices == xs.length) {
+			xs = Arrays.copyOf(xs, 2 * vertices);
+			ys = Arrays.copyOf(ys, 2 * vertices);
+		}
+		xs[vertices] = x;
+		ys[vertices] = y;
+		vertices++;
+	}
+
+	/**
+	 * Finishes the polygon that was begun last and works out its bounding
+	 * box, in whole pixels.
+	 */
+	void end() {
+		int p = polygons++;
+		start[polygons] = vertices;
+		bound(p);
+	}
+
+	/**
+	 * Scales every polygon about the top left corner, and their bounding
+	 * boxes with them.
+	 *
+	 * @param scale
+	 *            How much to scale them by
+	 */
+	void scale(float scale) {
+		for (int v = 0; v < vertices; v++) {
+			xs[v] *= scale;
+			ys[v] *= scale;
+		}
+		for (int p = 0; p < polygons; p++) {
+			bound(p);
+		}
+	}
+
+	/**
+	 * Works out the bounding box of a polygon, in whole pixels.
+	 */
+	private void bound(int p) {
+		float left = Float.MAX_VALUE;
+		float top = Float.MAX_VALUE;
+		float right = -Float.MAX_VALUE;
+		float bottom = -Float.MAX_VALUE;
+		for (int v = start[p]; v < start[p + 1]; v++) {
+			left = Math.min(left, xs[v]);
+			right = Math.max(right, xs[v]);
+			top = Math.min(top, ys[v]);
+			bottom = Math.max(bottom, ys[v]);
+		}
+		minX[p] = (int) Math.floor(left);
+		minY[p] = (int) Math.floor(top);
+		maxX[p] = (int) Math.ceil(right);
+		maxY[p] = (int) Math.ceil(bottom);
+	}
+
+	/**
+	 * Adds every polygon to a path, so that Java2D can fill them all at once.
+	 *
+	 * @param path
+	 *            The path to add the polygons to.
+	 */
+	void appendTo(Path2D.Float path) {
+		for (int p = 0; p < polygons; p++) {
+			appendTo(path, p);
+		}
+	}
+
+	/**
+	 * Adds one polygon to a path.
+	 *
+	 * @param path
+	 *            The path to add the polygon to.
+	 * @param p
+	 *            The polygon.
+	 */
+	void appendTo(Path2D.Float path, int p) {
+		int first = start[p];
+		path.moveTo(xs[first], ys[first]);
+		for (int v = first + 1; v < start[p + 1]; v++) {
+			path.lineTo(xs[v], ys[v]);
+		}
+		path.closePath();
+	}
+}
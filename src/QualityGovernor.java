@@ -0,0 +1,182 @@
+package Kaleidoscope;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The QualityGovernor trades picture quality for speed, to hold the time of
+ * a frame under a budget. The View tells it how long every frame took; it
+ * averages them over WINDOW frames and, when the average is over budget,
+ * steps down one quality level. Lower levels draw the picture at a lower
+ * resolution and scale it up, then draw fewer reflections than were chosen.
+ *
+ * Stepping back up has hysteresis, so the quality does not go up and down
+ * every few frames. When it steps down, the governor remembers how much
+ * slower the level above was than the level it went to. It only steps up
+ * when the frames, made that much slower, would still be HEADROOM under
+ * budget. Until it knows, it waits for frames to take less than half the
+ * budget. Every change is followed by SETTLE frames that are not counted,
+ * while the new level gets going.
+ *
+ * @author Martha Trevino
+ */
+class QualityGovernor {
+
+	/** The default frame budget, in milliseconds. */
+	static final double DEFAULT_BUDGET_MILLIS = Double.parseDouble(System
+			.getProperty("kaleidoscope.frameBudget", "16"));
+
+	/** Frames averaged before each decision. */
+	static final int WINDOW = 8;
+	/** Frames left out after every change of level. */
+	static final int SETTLE = 2;
+	/** How far under budget a better level must be expected to be. */
+	static final double HEADROOM = 0.85;
+	/** How far under budget frames must be when that is not known. */
+	static final double UNKNOWN_HEADROOM = 0.5;
+
+	/** The resolution of each level, as a part of the size of the View. */
+	private static final float[] SCALES = { 1, 0.75f, 0.5f, 0.5f, 0.5f, 0.5f };
+	/** The most reflections drawn at each level. */
+	private static final int[] MAX_REFLECTIONS = { Integer.MAX_VALUE,
+			Integer.MAX_VALUE, Integer.MAX_VALUE, 12, 8, 4 };
+
+	/** The number of quality levels, the best being 0. */
+	static final int LEVELS = SCALES.length;
+
+	private volatile long budget;
+	private volatile int level;
+
+	/**
+	 * How much slower each level was than the one below it, when the
+	 * governor last stepped down to it, or 0 if it never has.
+	 */
+	private final double[] slower = new double[LEVELS];
+	/** The mean frame time before the last step down, not yet compared. */
+	private double beforeStep;
+
+	private long sum;
+	private int frames;
+	private int skip;
+	private double mean;
+	private long changes;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param budget
+	 *            The most a frame should take, in nanoseconds
+	 */
+	QualityGovernor(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Counts one frame, and steps down or up a level if it is time to.
+	 * Called by the View after every frame, on the thread that drew it.
+	 *
+	 * @param nanos
+	 *            How long the frame took to draw
+	 */
+	synchronized void frameDrawn(long nanos) {
+		if (skip > 0) {
+			skip--;
+			return;
+		}
+		sum += nanos;
+		if (++frames < WINDOW) {
+			return;
+		}
+		mean = (double) sum / frames;
+		sum = 0;
+		frames = 0;
+		int l = level;
+		if (beforeStep > 0) {
+			slower[l] = Math.max(beforeStep / mean, 1);
+			beforeStep = 0;
+		}
+		if (mean > budget && l < LEVELS - 1) {
+			beforeStep = mean;
+			change(l + 1);
+		} else if (l > 0
+				&& (slower[l] > 0 ? mean * slower[l] < budget * HEADROOM
+						: mean < budget * UNKNOWN_HEADROOM)) {
+			change(l - 1);
+		}
+	}
+
+	private void change(int l) {
+		level = l;
+		skip = SETTLE;
+		changes++;
+	}
+
+	/**
+	 * @return The resolution to draw at, as a part of the size of the View
+	 */
+	float getScale() {
+		return SCALES[level];
+	}
+
+	/**
+	 * @param chosen
+	 *            The number of reflections chosen
+	 * @return The number of reflections to draw
+	 */
+	int reflections(int chosen) {
+		return Math.min(chosen, MAX_REFLECTIONS[level]);
+	}
+
+	/**
+	 * @return The quality level, from 0, the best, to LEVELS - 1
+	 */
+	int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Sets the most a frame should take.
+	 *
+	 * @param nanos
+	 *            The frame budget, in nanoseconds
+	 */
+	void setBudget(long nanos) {
+		budget = nanos;
+	}
+
+	/**
+	 * @return The most a frame should take, in nanoseconds
+	 */
+	long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Goes back to the best quality and forgets what it has learned, such
+	 * as when the governor is turned on again.
+	 */
+	synchronized void reset() {
+		level = 0;
+		Arrays.fill(slower, 0);
+		beforeStep = 0;
+		sum = 0;
+		frames = 0;
+		skip = 0;
+		mean = 0;
+	}
+
+	/**
+	 * @return One line about the quality, for the on-screen statistics
+	 */
+	synchronized String summary() {
+		int l = level;
+		int most = MAX_REFLECTIONS[l];
+		return String.format(Locale.ROOT,
+				"quality  %d of %d   %d%% resolution   %s   %.1f of %.1f ms"
+						+ "   %d changes", LEVELS - 1 - l, LEVELS - 1,
+				Math.round(SCALES[l] * 100),
+				most == Integer.MAX_VALUE ? "all reflections" : "at most "
+						+ most + " reflections", mean / 1e6, budget / 1e6,
+				changes);
+	}
+}
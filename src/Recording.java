@@ -0,0 +1,593 @@
+package Kaleidoscope;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A Recording keeps the last ticks of a simulation in a memory-mapped file,
+ * so that a run can be played back and scrubbed through. The file is a ring
+ * of slots of the same size, one per tick: tick t is always in slot t modulo
+ * the number of slots, so any tick still in the ring is found at once, and
+ * the oldest tick is written over when the ring is full.
+ *
+ * Every slot holds what is needed to draw the figures of its tick, in
+ * columns: the positions as shorts, the deltas, sizes and shape kinds as
+ * bytes, and the hues as one of FigureStore.HUES steps, which gives back the
+ * exact colors. That is 10 bytes per figure. Playing a tick back reads the
+ * mapping straight into the FigureState the View draws.
+ *
+ * The thread that ticks only copies the columns of the figures into a
+ * snapshot, which is the part of recording that makes a tick longer, by
+ * about 8 ns per figure; a thread of the recording packs the snapshot and
+ * writes it into the mapping, and the system writes that to disk later. The
+ * file is filled in when it is made, so that no write has to wait for the
+ * system to find room on the disk. When there are more figures than fit in a
+ * slot, the ring is laid out again with bigger slots and what was recorded so
+ * far is lost.
+ * If that fails, recording stops and getFailure() says why.
+ *
+ * @author Martha Trevino
+ */
+class Recording {
+
+	/** The default size of a recording, in megabytes. */
+	static final long DEFAULT_MEGABYTES = Long.getLong(
+			"kaleidoscope.recording", 64);
+
+	/** "KREC" */
+	private static final int MAGIC = 0x4B524543;
+	private static final int VERSION = 1;
+
+	/**
+	 * The file starts with the magic number, the version, the figures per
+	 * slot, the number of slots, and the first and the last tick recorded.
+	 */
+	private static final int HEADER = 32;
+	private static final int FIGURES_AT = 8;
+	private static final int SLOTS_AT = 12;
+	private static final int FIRST_AT = 16;
+	private static final int LAST_AT = 24;
+
+	/**
+	 * Every slot starts with its tick (-1 while it is being written), the
+	 * number of figures, the style and color versions of the FigureStore and
+	 * the size of the View.
+	 */
+	private static final int SLOT_HEADER = 32;
+	private static final int BYTES_PER_FIGURE = 10;
+
+	/**
+	 * Added to the versions of a recorded tick when it is played back. The
+	 * versions of a FigureStore count up from 0, so they are never taken for
+	 * the versions of another store, whose figures look different; their
+	 * difference stays the same.
+	 */
+	private static final int RECORDED = Integer.MIN_VALUE;
+
+	/** Snapshots the ticking thread can fill in before it waits. */
+	private static final int SNAPSHOTS = 3;
+
+	/** Put in the queue of snapshots after the last one. */
+	private static final Snapshot END = new Snapshot();
+
+	private final File file;
+	private final boolean writable;
+	/** The most bytes the file should take. */
+	private final long bytes;
+
+	private final RandomAccessFile access;
+	/** The mapping and how it is laid out, replaced as a whole. */
+	private volatile Ring ring;
+	private volatile boolean closed;
+	private volatile IOException failure;
+
+	/** Snapshots to be written, in order, and snapshots to be filled in. */
+	private final BlockingQueue<Snapshot> pending = new ArrayBlockingQueue<Snapshot>(
+			SNAPSHOTS + 1);
+	private final BlockingQueue<Snapshot> free = new ArrayBlockingQueue<Snapshot>(
+			SNAPSHOTS);
+	/** Snapshots handed over and not written yet. Guarded by this. */
+	private int unwritten;
+	private Thread writer;
+
+	/**
+	 * Columns of a snapshot packed the way they are recorded, to be copied
+	 * into the mapping at once. Hues and sizes are only packed again when
+	 * the styleVersion of the figures changes.
+	 */
+	private short[] xColumn;
+	private short[] yColumn;
+	private byte[] xDeltaColumn;
+	private byte[] yDeltaColumn;
+	private short[] hueColumn;
+	private byte[] sizeColumn;
+	private int columnStyle;
+	private int columnCount;
+
+	/**
+	 * Makes a new, empty recording, replacing the file if there is one.
+	 *
+	 * @param file
+	 *            The file to record into
+	 * @param bytes
+	 *            The most bytes the file should take; it always has room for
+	 *            at least two ticks
+	 * @param figures
+	 *            The number of figures to make room for in every tick
+	 */
+	Recording(File file, long bytes, int figures) throws IOException {
+		this.file = file;
+		this.writable = true;
+		this.bytes = bytes;
+		access = new RandomAccessFile(file, "rw");
+		try {
+			layOut(Math.max(figures, 1));
+		} catch (IOException e) {
+			access.close();
+			throw e;
+		}
+		for (int i = 0; i < SNAPSHOTS; i++) {
+			free.add(new Snapshot());
+		}
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeSnapshots();
+			}
+		}, "Kaleidoscope recorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private Recording(File file) throws IOException {
+		this.file = file;
+		this.writable = false;
+		this.bytes = file.length();
+		access = new RandomAccessFile(file, "r");
+		FileChannel channel = access.getChannel();
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+				0, channel.size());
+		mapped.order(ByteOrder.LITTLE_ENDIAN);
+		if (mapped.capacity() < HEADER || mapped.getInt(0) != MAGIC
+				|| mapped.getInt(4) != VERSION) {
+			access.close();
+			throw new IOException("Not a recording: " + file);
+		}
+		ring = new Ring(mapped, mapped.getInt(FIGURES_AT), mapped
+				.getInt(SLOTS_AT));
+	}
+
+	/**
+	 * Opens a recording to play it back.
+	 *
+	 * @param file
+	 *            A file made by a Recording
+	 * @return The recording, which cannot be recorded into
+	 */
+	static Recording open(File file) throws IOException {
+		return new Recording(file);
+	}
+
+	/**
+	 * @return The size of a slot with room for some figures, rounded up to
+	 *         eight bytes
+	 */
+	private static int slotBytes(int figures) {
+		return SLOT_HEADER + (BYTES_PER_FIGURE * figures + 7 & ~7);
+	}
+
+	/**
+	 * Sizes the file for slots of some figures, fills it with zeros and maps
+	 * it. Nothing recorded before is kept.
+	 *
+	 * The file is only ever made longer, never shorter, because the mapping
+	 * before may still be read by other threads through first() and last(),
+	 * and reading a mapping past the end of its file crashes. That mapping is
+	 * first marked as empty, and the new one is only published once it is
+	 * complete.
+	 */
+	private void layOut(int figures) throws IOException {
+		int size = slotBytes(figures);
+		long fit = Math.min(bytes, Integer.MAX_VALUE) - HEADER;
+		int count = (int) Math.max(fit / size, 2);
+		long length = HEADER + (long) count * size;
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Too many figures to record: " + figures);
+		}
+		Ring old = ring;
+		if (old == null) {
+			access.setLength(length);
+		} else {
+			old.buffer.putLong(LAST_AT, -1);
+			old.buffer.putLong(FIRST_AT, -1);
+			if (access.length() < length) {
+				access.setLength(length);
+			}
+		}
+		FileChannel channel = access.getChannel();
+		ByteBuffer zeros = ByteBuffer.allocate(1 << 16);
+		for (long at = HEADER; at < length; at += zeros.capacity()) {
+			zeros.clear().limit((int) Math.min(zeros.capacity(), length - at));
+			while (zeros.hasRemaining()) {
+				channel.write(zeros, at + zeros.position());
+			}
+		}
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE,
+				0, length);
+		mapped.order(ByteOrder.LITTLE_ENDIAN);
+		mapped.load();
+		mapped.putInt(0, MAGIC);
+		mapped.putInt(4, VERSION);
+		mapped.putInt(FIGURES_AT, figures);
+		mapped.putInt(SLOTS_AT, count);
+		mapped.putLong(FIRST_AT, -1);
+		mapped.putLong(LAST_AT, -1);
+		xColumn = new short[figures];
+		yColumn = new short[figures];
+		xDeltaColumn = new byte[figures];
+		yDeltaColumn = new byte[figures];
+		hueColumn = new short[figures];
+		sizeColumn = new byte[figures];
+		columnCount = -1;
+		ring = new Ring(mapped, figures, count);
+	}
+
+	/**
+	 * Records the figures as they are at a tick. Called by the
+	 * SimulationClock with the ticks in order; a tick that is recorded again
+	 * is written over. This only copies the figures, unless the recording is
+	 * SNAPSHOTS ticks behind, when it waits for the oldest to be written.
+	 *
+	 * @param store
+	 *            The figures
+	 * @param tick
+	 *            The tick they are at
+	 */
+	void record(FigureStore store, long tick) {
+		if (!writable || closed) {
+			return;
+		}
+		Snapshot snapshot;
+		try {
+			snapshot = free.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		snapshot.copyFrom(store, tick);
+		synchronized (this) {
+			unwritten++;
+		}
+		pending.add(snapshot);
+	}
+
+	/**
+	 * Writes the snapshots into the mapping as they come, until END.
+	 */
+	private void writeSnapshots() {
+		try {
+			Snapshot snapshot;
+			while ((snapshot = pending.take()) != END) {
+				if (failure == null) {
+					try {
+						write(snapshot);
+					} catch (IOException e) {
+						failure = e;
+						closed = true;
+					}
+				}
+				free.add(snapshot);
+				synchronized (this) {
+					unwritten--;
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * Packs a snapshot into its slot.
+	 */
+	private void write(Snapshot snapshot) throws IOException {
+		int n = snapshot.count;
+		if (n > ring.figures) {
+			layOut(Math.max(n, 2 * ring.figures));
+		}
+		Ring r = ring;
+		int figures = r.figures;
+		long tick = snapshot.tick;
+		MappedByteBuffer b = r.buffer;
+		ShortBuffer shorts = r.shorts;
+		int at = r.slot(tick);
+		b.putLong(at, -1);
+		b.putInt(at + 8, n);
+		b.putInt(at + 12, snapshot.styleVersion);
+		b.putInt(at + 16, snapshot.colorVersion);
+		b.putInt(at + 20, snapshot.width);
+		b.putInt(at + 24, snapshot.height);
+
+		int[] x = snapshot.x;
+		int[] y = snapshot.y;
+		int[] xDelta = snapshot.xDelta;
+		int[] yDelta = snapshot.yDelta;
+		short[] xs = xColumn;
+		short[] ys = yColumn;
+		byte[] xDeltas = xDeltaColumn;
+		byte[] yDeltas = yDeltaColumn;
+		for (int i = 0; i < n; i++) {
+			xs[i] = (short) x[i];
+			ys[i] = (short) y[i];
+			xDeltas[i] = (byte) xDelta[i];
+			yDeltas[i] = (byte) yDelta[i];
+		}
+		if (columnStyle != snapshot.styleVersion || columnCount != n) {
+			float[] hue = snapshot.hue;
+			int[] size = snapshot.size;
+			for (int i = 0; i < n; i++) {
+				hueColumn[i] = (short) Math.round(hue[i] * FigureStore.HUES);
+				sizeColumn[i] = (byte) size[i];
+			}
+			columnStyle = snapshot.styleVersion;
+			columnCount = n;
+		}
+		int column = at + SLOT_HEADER;
+		shorts.put(column / 2, xs, 0, n);
+		column += 2 * figures;
+		shorts.put(column / 2, ys, 0, n);
+		column += 2 * figures;
+		shorts.put(column / 2, hueColumn, 0, n);
+		column += 2 * figures;
+		b.put(column, xDeltas, 0, n);
+		column += figures;
+		b.put(column, yDeltas, 0, n);
+		column += figures;
+		b.put(column, sizeColumn, 0, n);
+		column += figures;
+		b.put(column, snapshot.kind, 0, n);
+		b.putLong(at, tick);
+
+		long first = b.getLong(FIRST_AT);
+		b.putLong(FIRST_AT, first < 0 ? tick : Math.max(first, tick
+				- r.slots + 1));
+		b.putLong(LAST_AT, tick);
+	}
+
+	/**
+	 * Waits until every snapshot handed over has been written.
+	 */
+	private synchronized void drain() {
+		try {
+			while (unwritten > 0 && !closed) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return The oldest tick written so far, or -1 if there is none
+	 */
+	long first() {
+		return ring.buffer.getLong(FIRST_AT);
+	}
+
+	/**
+	 * @return The last tick written so far, or -1 if there is none
+	 */
+	long last() {
+		return ring.buffer.getLong(LAST_AT);
+	}
+
+	/**
+	 * @return The width of the View at the last tick written
+	 */
+	int getWidth() {
+		Ring r = ring;
+		long last = r.buffer.getLong(LAST_AT);
+		return last < 0 ? 0 : r.buffer.getInt(r.slot(last) + 20);
+	}
+
+	/**
+	 * @return The height of the View at the last tick written
+	 */
+	int getHeight() {
+		Ring r = ring;
+		long last = r.buffer.getLong(LAST_AT);
+		return last < 0 ? 0 : r.buffer.getInt(r.slot(last) + 24);
+	}
+
+	/**
+	 * Fills in a FigureState from a recorded tick, once every tick recorded
+	 * so far has been written. Sizes, colors and shapes are only read when
+	 * their version differs from the one the state already has.
+	 *
+	 * @param tick
+	 *            The tick to play back
+	 * @param state
+	 *            The state to fill in
+	 * @return False, and the state unchanged, if the tick is not recorded
+	 */
+	boolean read(long tick, FigureState state) {
+		if (writable) {
+			drain();
+		}
+		Ring r = ring;
+		MappedByteBuffer b = r.buffer;
+		if (closed || tick < b.getLong(FIRST_AT) || tick > b.getLong(LAST_AT)) {
+			return false;
+		}
+		int figures = r.figures;
+		int at = r.slot(tick);
+		if (b.getLong(at) != tick) {
+			return false;
+		}
+		int n = b.getInt(at + 8);
+		int styleVersion = b.getInt(at + 12) + RECORDED;
+		if (state.x.length < n) {
+			state.allocate(n);
+		}
+		int[] x = state.x;
+		int[] y = state.y;
+		int[] xDelta = state.xDelta;
+		int[] yDelta = state.yDelta;
+		int xs = at + SLOT_HEADER;
+		int ys = xs + 2 * figures;
+		int hues = ys + 2 * figures;
+		int xDeltas = hues + 2 * figures;
+		int yDeltas = xDeltas + figures;
+		for (int i = 0; i < n; i++) {
+			x[i] = b.getShort(xs + 2 * i);
+			y[i] = b.getShort(ys + 2 * i);
+			xDelta[i] = b.get(xDeltas + i);
+			yDelta[i] = b.get(yDeltas + i);
+		}
+		if (state.styleVersion != styleVersion || state.count != n) {
+			int sizes = yDeltas + figures;
+			int kinds = sizes + figures;
+			for (int i = 0; i < n; i++) {
+				float h = (float) b.getShort(hues + 2 * i) / FigureStore.HUES;
+				state.hue[i] = h;
+				state.rgb[i] = FigureStore.rgb(h);
+				state.size[i] = b.get(sizes + i) & 0xFF;
+				state.kind[i] = b.get(kinds + i);
+			}
+		}
+		state.count = n;
+		state.styleVersion = styleVersion;
+		state.colorVersion = b.getInt(at + 16) + RECORDED;
+		state.width = b.getInt(at + 20);
+		state.height = b.getInt(at + 24);
+		state.tick = tick;
+		state.between = 0;
+		return true;
+	}
+
+	/**
+	 * @return Why recording stopped, or null if it has not failed
+	 */
+	IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return The file recorded into
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes what is left to write, stops recording and closes the file.
+	 * What was recorded stays in it.
+	 */
+	void close() throws IOException {
+		if (writable && !closed) {
+			drain();
+			closed = true;
+			pending.add(END);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			ring.buffer.force();
+		}
+		closed = true;
+		access.close();
+	}
+
+	/**
+	 * A mapping of the file and the slots it is laid out in. A new Ring is
+	 * made whenever the file is laid out again, so a thread that reads the
+	 * ring field once always sees a mapping and its layout that go together.
+	 */
+	private static class Ring {
+		final MappedByteBuffer buffer;
+		/** The same mapping, seen as shorts. */
+		final ShortBuffer shorts;
+		final int figures;
+		final int slots;
+		final int slotBytes;
+
+		Ring(MappedByteBuffer buffer, int figures, int slots) {
+			this.buffer = buffer;
+			this.shorts = buffer.asShortBuffer();
+			this.figures = figures;
+			this.slots = slots;
+			this.slotBytes = slotBytes(figures);
+		}
+
+		/**
+		 * @return Where the slot of a tick starts
+		 */
+		int slot(long tick) {
+			return HEADER + (int) Math.floorMod(tick, (long) slots) * slotBytes;
+		}
+	}
+
+	/**
+	 * The figures of one tick, copied by the thread that ticks and waiting
+	 * to be written.
+	 */
+	private static class Snapshot {
+		long tick;
+		int count;
+		int styleVersion = -1;
+		int colorVersion;
+		int width;
+		int height;
+		int[] x = new int[0];
+		int[] y;
+		int[] xDelta;
+		int[] yDelta;
+		int[] size;
+		float[] hue;
+		byte[] kind;
+
+		/**
+		 * Copies the figures of a store, keeping the arrays when they are big
+		 * enough. Sizes, colors and shapes are only copied when they have
+		 * changed since this snapshot was last filled in.
+		 */
+		void copyFrom(FigureStore store, long tick) {
+			int n = store.count;
+			if (x.length < n) {
+				int capacity = store.x.length;
+				x = new int[capacity];
+				y = new int[capacity];
+				xDelta = new int[capacity];
+				yDelta = new int[capacity];
+				size = new int[capacity];
+				hue = new float[capacity];
+				kind = new byte[capacity];
+				styleVersion = -1;
+			}
+			System.arraycopy(store.x, 0, x, 0, n);
+			System.arraycopy(store.y, 0, y, 0, n);
+			System.arraycopy(store.xDelta, 0, xDelta, 0, n);
+			System.arraycopy(store.yDelta, 0, yDelta, 0, n);
+			if (styleVersion != store.styleVersion || count != n) {
+				System.arraycopy(store.size, 0, size, 0, n);
+				System.arraycopy(store.hue, 0, hue, 0, n);
+				System.arraycopy(store.kind, 0, kind, 0, n);
+			}
+			count = n;
+			styleVersion = store.styleVersion;
+			colorVersion = store.colorVersion;
+			width = store.getWidth();
+			height = store.getHeight();
+			this.tick = tick;
+		}
+	}
+}
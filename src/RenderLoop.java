@@ -0,0 +1,118 @@
+package Kaleidoscope;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The RenderLoop is a thread that draws the View continuously, at the refresh
+ * rate of the display, instead of waiting for Swing to repaint it. If the View
+ * cannot draw actively it drops back to ordinary repainting.
+ *
+ * @author Martha Trevino
+ */
+public class RenderLoop implements Runnable {
+
+	/** Used when the display does not report its refresh rate. */
+	static final int DEFAULT_REFRESH_RATE = 60;
+
+	private final View view;
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param view
+	 *            The View to draw.
+	 */
+	RenderLoop(View view) {
+		this.view = view;
+	}
+
+	/**
+	 * Starts the render thread. Does nothing if it is already running.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "Kaleidoscope renderer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the render thread and waits for it to finish its frame.
+	 */
+	public synchronized void stop() {
+		if (thread == null) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(thread);
+		if (thread != Thread.currentThread()) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		thread = null;
+	}
+
+	/**
+	 * @return True if the render thread is running.
+	 */
+	public synchronized boolean isRunning() {
+		return thread != null;
+	}
+
+	/**
+	 * Draws frames until stopped, one per refresh of the display. A frame
+	 * that runs late moves the schedule along instead of being followed by a
+	 * burst of catch-up frames.
+	 */
+	@Override
+	public void run() {
+		long period = 1000000000L / refreshRate(view.getGraphicsConfiguration());
+		FrameStats stats = view.getStats();
+		if (stats != null) {
+			stats.setFrameBudget(period);
+		}
+		long next = System.nanoTime();
+		while (running) {
+			if (!view.renderActiveFrame()) {
+				running = false;
+				view.activeRenderingFailed();
+				break;
+			}
+			next += period;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+			} else if (-wait > period) {
+				next = System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * @param gc
+	 *            The configuration of the screen the View is on, or null.
+	 * @return The refresh rate of that screen, in frames per second.
+	 */
+	static int refreshRate(GraphicsConfiguration gc) {
+		if (GraphicsEnvironment.isHeadless()) {
+			return DEFAULT_REFRESH_RATE;
+		}
+		DisplayMode mode = gc != null ? gc.getDevice().getDisplayMode()
+				: GraphicsEnvironment.getLocalGraphicsEnvironment()
+						.getDefaultScreenDevice().getDisplayMode();
+		int rate = mode.getRefreshRate();
+		return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE
+				: rate;
+	}
+}
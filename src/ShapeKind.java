@@ -0,0 +1,210 @@
+package Kaleidoscope;
+
+/**
+ * A ShapeKind describes one kind of figure, such as a ball or a triangle, by
+ * an outline of vertices worked out once, in units of the figure size. Figures
+ * only carry the small id of their kind; painters look the kind up in a table
+ * and never compare names.
+ *
+ * Every kind has a bit of its own, so a set of kinds fits in an int mask.
+ * Stars and hexagons are only registered when they are asked for, with
+ * -Dkaleidoscope.extraShapes=star,hexagon; other kinds can be added with
+ * register().
+ *
+ * @author Martha Trevino
+ */
+public final class ShapeKind {
+
+	/** The most kinds there can be, one per bit of an int mask. */
+	static final int MAX_KINDS = 32;
+
+	private static final ShapeKind[] KINDS = new ShapeKind[MAX_KINDS];
+	private static int count;
+
+	public static final ShapeKind BALL = register("ball", "Circles",
+			false, regularPolygon(32, 0.5, 0.5, 0));
+	public static final ShapeKind RECTANGLE = register("rectangle",
+			"Rectangles", false, new double[] { -0.5, -0.5, 0.5, -0.5, 0.5,
+					0.5, -0.5, 0.5 });
+	public static final ShapeKind TRIANGLE = register("triangle",
+			"Triangles", true, new double[] { 0, 0, 1, 0.5, 0.5, 1 });
+	public static final ShapeKind ROUND_RECT = register("roundRect",
+			"Round Rectangles", false, roundedSquare(0.15, 4));
+	public static final ShapeKind DIAMOND = register("diamond", "Diamonds",
+			true, new double[] { 0, 0, 1, 0.5, 2, 2, 0.5, 1 });
+
+	// Unless asked for, new figures are shared out among the five above only
+	static {
+		for (String name : System.getProperty("kaleidoscope.extraShapes", "")
+				.split(",")) {
+			name = name.trim();
+			if (name.equals("star")) {
+				register("star", "Stars", true, regularPolygon(10, 0.5, 0.2,
+						-Math.PI / 2));
+			} else if (name.equals("hexagon")) {
+				register("hexagon", "Hexagons", true, regularPolygon(6, 0.5,
+						0.5, 0));
+			} else if (!name.isEmpty()) {
+				System.err.println("Unknown extra shape: " + name);
+			}
+		}
+	}
+
+	/** The id of this kind, also its position in the table. */
+	public final int id;
+	/** The name used to look this kind up, such as "ball". */
+	public final String name;
+	/** The name shown next to the check box for this kind. */
+	public final String label;
+	/**
+	 * True if the outline turns with each reflection, false if only its
+	 * position turns and the outline stays upright.
+	 */
+	public final boolean turns;
+	/** X coordinates of the outline, in units of the figure size. */
+	final float[] xs;
+	/** Y coordinates of the outline, in units of the figure size. */
+	final float[] ys;
+	/** How far the outline reaches from the figure position. */
+	final double reach;
+
+	private ShapeKind(int id, String name, String label, boolean turns,
+			double[] outline) {
+		this.id = id;
+		this.name = name;
+		this.label = label;
+		this.turns = turns;
+		xs = new float[outline.length / 2];
+		ys = new float[outline.length / 2];
+		double farthest = 0;
+		for (int v = 0; v < xs.length; v++) {
+			xs[v] = (float) outline[2 * v];
+			ys[v] = (float) outline[2 * v + 1];
+			farthest = Math.max(farthest, Math.hypot(xs[v], ys[v]));
+		}
+		reach = farthest;
+	}
+
+	/**
+	 * Adds a new kind of figure, such as a user defined polygon.
+	 *
+	 * @param name
+	 *            The name used to look the kind up
+	 * @param label
+	 *            The name shown to the user
+	 * @param turns
+	 *            True if the outline turns with each reflection
+	 * @param outline
+	 *            Vertices as x, y pairs, in units of the figure size and
+	 *            relative to the figure position
+	 * @return The new kind
+	 */
+	public static synchronized ShapeKind register(String name, String label,
+			boolean turns, double[] outline) {
+		if (count == MAX_KINDS) {
+			throw new IllegalStateException("No room for shape kind " + name);
+		}
+		if (outline.length < 6 || outline.length % 2 != 0) {
+			throw new IllegalArgumentException("Bad outline for " + name);
+		}
+		ShapeKind kind = new ShapeKind(count, name, label, turns, outline);
+		KINDS[count++] = kind;
+		return kind;
+	}
+
+	/**
+	 * @param id
+	 *            The id of a kind
+	 * @return The kind with that id
+	 */
+	public static ShapeKind get(int id) {
+		return KINDS[id];
+	}
+
+	/**
+	 * @return The number of kinds there are
+	 */
+	public static int count() {
+		return count;
+	}
+
+	/**
+	 * @param name
+	 *            The name of a kind, such as "ball"
+	 * @return The kind with that name
+	 */
+	public static ShapeKind forName(String name) {
+		for (int k = 0; k < count; k++) {
+			if (KINDS[k].name.equals(name)) {
+				return KINDS[k];
+			}
+		}
+		throw new IllegalArgumentException("Unknown shape type: " + name);
+	}
+
+	/**
+	 * @return The bit of this kind in a mask of kinds
+	 */
+	public int mask() {
+		return 1 << id;
+	}
+
+	/**
+	 * @return The number of vertices in the outline
+	 */
+	public int vertices() {
+		return xs.length;
+	}
+
+	/**
+	 * Makes the outline of a regular polygon, or of a star when the two radii
+	 * differ, centered on the figure position.
+	 *
+	 * @param corners
+	 *            Number of vertices
+	 * @param outer
+	 *            Radius of the even vertices
+	 * @param inner
+	 *            Radius of the odd vertices
+	 * @param start
+	 *            Angle of the first vertex
+	 * @return The outline, as x, y pairs
+	 */
+	static double[] regularPolygon(int corners, double outer, double inner,
+			double start) {
+		double[] outline = new double[2 * corners];
+		for (int v = 0; v < corners; v++) {
+			double angle = start + 2 * Math.PI * v / corners;
+			double r = v % 2 == 0 ? outer : inner;
+			outline[2 * v] = r * Math.cos(angle);
+			outline[2 * v + 1] = r * Math.sin(angle);
+		}
+		return outline;
+	}
+
+	/**
+	 * Makes the outline of a square with rounded corners, centered on the
+	 * figure position.
+	 *
+	 * @param radius
+	 *            Radius of the corners
+	 * @param steps
+	 *            Number of segments in each corner
+	 * @return The outline, as x, y pairs
+	 */
+	static double[] roundedSquare(double radius, int steps) {
+		double[] outline = new double[8 * (steps + 1)];
+		double inset = 0.5 - radius;
+		int i = 0;
+		for (int corner = 0; corner < 4; corner++) {
+			double cx = corner == 0 || corner == 3 ? inset : -inset;
+			double cy = corner < 2 ? inset : -inset;
+			for (int s = 0; s <= steps; s++) {
+				double angle = Math.PI / 2 * (corner + (double) s / steps);
+				outline[i++] = cx + radius * Math.cos(angle);
+				outline[i++] = cy + radius * Math.sin(angle);
+			}
+		}
+		return outline;
+	}
+}
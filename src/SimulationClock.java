@@ -0,0 +1,453 @@
+package Kaleidoscope;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The SimulationClock drives every figure from a single Timer. Once per tick
+ * it advances all the figures in the FigureStore by one step, publishes a
+ * copy of them through its StateExchange and then tells its Listeners exactly
+ * once, so the View repaints once per tick no matter how many figures there
+ * are.
+ *
+ * Only the clock writes to the FigureStore. Speed, limit, color, collision,
+ * figure count and reset changes are queued without locking and applied to
+ * all the figures together, at a tick boundary; while the clock is paused
+ * they are applied right away.
+ *
+ * The clock ticks 25 times a second unless given another tick rate; the
+ * View may draw frames faster than that, between ticks.
+ *
+ * Every tick can also be written to a Recording, and while the clock is
+ * paused a recorded tick can be published in place of the figures, to scrub
+ * back and forth through what happened.
+ *
+ * @author Martha Trevino
+ */
+public class SimulationClock {
+
+	/** Time between two ticks, in milliseconds (25 times a second). */
+	static final int TICK_MILLIS = 40;
+
+	/** The fewest and the most ticks per second. */
+	static final int MIN_TICK_RATE = 1;
+	static final int MAX_TICK_RATE = 200;
+
+	/**
+	 * Something that wants to know when a new tick has been published.
+	 */
+	interface Listener {
+		/**
+		 * Called on the thread that ticked, after the tick was published.
+		 *
+		 * @param tick
+		 *            The tick that was published
+		 */
+		void ticked(long tick);
+	}
+
+	/** The figures driven by this clock. */
+	private final FigureStore figures;
+
+	/** Where a copy of the figures is published after every tick. */
+	private final StateExchange exchange = new StateExchange();
+
+	/** Changes waiting for the next tick boundary. */
+	private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<Runnable>();
+
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private Timer timer;
+	private volatile boolean running;
+	private long ticks;
+	/** Time between two ticks, in milliseconds. */
+	private int tickMillis = TICK_MILLIS;
+
+	/** Where the time of each tick is recorded, or null. */
+	private volatile FrameStats stats;
+
+	/** Where every tick is recorded, or null. Used holding the lock. */
+	private Recording recording;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param figures
+	 *            The figures to be advanced on every tick.
+	 */
+	SimulationClock(FigureStore figures) {
+		this.figures = figures;
+		exchange.publish(figures, ticks);
+	}
+
+	/**
+	 * Starts ticking. Does nothing if the clock is already running.
+	 */
+	public synchronized void start() {
+		if (timer != null) {
+			return;
+		}
+		running = true;
+		timer = new Timer("Kaleidoscope clock", true);
+		timer.scheduleAtFixedRate(new Strobe(), 0, tickMillis);
+	}
+
+	/**
+	 * Sets how many times a second the figures are stepped. This is separate
+	 * from how many frames a second are drawn: with interpolation the View
+	 * draws the figures between ticks, so motion stays smooth at a low rate.
+	 * A running clock carries on at the new rate from its next tick.
+	 *
+	 * @param perSecond
+	 *            The ticks per second, from MIN_TICK_RATE to MAX_TICK_RATE
+	 */
+	public synchronized void setTickRate(int perSecond) {
+		int rate = Math.max(MIN_TICK_RATE, Math.min(perSecond, MAX_TICK_RATE));
+		tickMillis = Math.round(1000f / rate);
+		exchange.setPeriod(tickMillis * 1000000L);
+		FrameStats tickStats = stats;
+		if (tickStats != null) {
+			tickStats.setTickPeriod(tickMillis * 1000000L);
+		}
+		if (timer != null) {
+			timer.cancel();
+			timer = new Timer("Kaleidoscope clock", true);
+			timer.scheduleAtFixedRate(new Strobe(), tickMillis, tickMillis);
+		}
+	}
+
+	/**
+	 * @return The ticks per second.
+	 */
+	public synchronized int getTickRate() {
+		return Math.round(1000f / tickMillis);
+	}
+
+	/**
+	 * @return Time between two ticks, in milliseconds.
+	 */
+	public synchronized int getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Stops ticking; every figure stays where it is. Changes still queued
+	 * are applied.
+	 */
+	public void pause() {
+		synchronized (this) {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+			running = false;
+		}
+		flush();
+	}
+
+	/**
+	 * @return True if the clock is ticking.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return The number of ticks executed so far.
+	 */
+	public synchronized long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * @return Where the figures are published after every tick.
+	 */
+	StateExchange getExchange() {
+		return exchange;
+	}
+
+	/**
+	 * @return The figures driven by this clock. Only the thread that ticks
+	 *         may change them.
+	 */
+	FigureStore getFigures() {
+		return figures;
+	}
+
+	/**
+	 * @param listener
+	 *            Told after every tick from now on.
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            No longer told about ticks.
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Sets a new speed for all the figures.
+	 *
+	 * @param percent
+	 *            The speed, as a percentage of each figure's own speed.
+	 */
+	public void setSpeed(final int percent) {
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				figures.setSpeed(percent);
+			}
+		});
+	}
+
+	/**
+	 * Sets the "walls" that all the figures should bounce off from.
+	 *
+	 * @param xLimit
+	 *            The position (in pixels) of the wall on the right.
+	 * @param yLimit
+	 *            The position (in pixels) of the floor.
+	 */
+	public void setLimits(final int xLimit, final int yLimit) {
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				figures.setLimits(xLimit, yLimit);
+			}
+		});
+	}
+
+	/**
+	 * Gives every figure a new random color.
+	 */
+	public void setColors() {
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				figures.setColors();
+			}
+		});
+	}
+
+	/**
+	 * Turns collisions between figures on or off.
+	 *
+	 * @param tf
+	 *            True to make the figures bounce off one another.
+	 */
+	public void setCollisions(final boolean tf) {
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				figures.setCollisions(tf);
+			}
+		});
+	}
+
+	/**
+	 * Grows or shrinks the number of figures.
+	 *
+	 * @param n
+	 *            The new number of figures, not negative.
+	 */
+	public void setCount(final int n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("Negative number of figures: "
+					+ n);
+		}
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				figures.setCount(n);
+			}
+		});
+	}
+
+	/**
+	 * Gives every figure a new random size, position, speed and color.
+	 */
+	public void reset() {
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				figures.reset();
+			}
+		});
+	}
+
+	/**
+	 * Starts or stops recording every tick. The tick the figures are at is
+	 * recorded right away.
+	 *
+	 * @param recording
+	 *            Where to record the ticks from now on, or null to stop
+	 *            recording
+	 */
+	public void setRecording(final Recording recording) {
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				SimulationClock.this.recording = recording;
+			}
+		});
+	}
+
+	/**
+	 * Publishes a recorded tick in place of the figures, and tells the
+	 * Listeners. The figures themselves stay where they are, and are shown
+	 * again by the next change or tick. Does nothing while the clock is
+	 * running.
+	 *
+	 * @param playback
+	 *            The recording to play back
+	 * @param tick
+	 *            The tick to show
+	 * @return True if the tick was recorded and has been published
+	 */
+	public boolean showRecorded(Recording playback, long tick) {
+		synchronized (this) {
+			if (running || !exchange.publish(playback, tick)) {
+				return false;
+			}
+		}
+		tell(tick);
+		return true;
+	}
+
+	/**
+	 * Queues a change to the figures for the next tick boundary. While the
+	 * clock is paused the change is applied, and published, right away.
+	 *
+	 * @param command
+	 *            The change, to be run on the thread that ticks.
+	 */
+	void submit(Runnable command) {
+		commands.add(command);
+		if (!running) {
+			flush();
+		}
+	}
+
+	/**
+	 * Applies every queued change and publishes the figures, without
+	 * advancing them.
+	 */
+	private void flush() {
+		long tick;
+		synchronized (this) {
+			runCommands();
+			tick = ticks;
+			exchange.publish(figures, tick);
+			if (recording != null) {
+				recording.record(figures, tick);
+			}
+		}
+		tell(tick);
+	}
+
+	/**
+	 * Advances every figure by one step and publishes one frame to the
+	 * Listeners.
+	 */
+	public void tick() {
+		FrameStats tickStats = stats;
+		if (tickStats != null) {
+			tickStats.tickStarted();
+		}
+		int count;
+		long tick;
+		synchronized (this) {
+			runCommands();
+			figures.step();
+			tick = ++ticks;
+			count = figures.count;
+			exchange.publish(figures, tick);
+			if (recording != null) {
+				recording.record(figures, tick);
+			}
+		}
+		if (tickStats != null) {
+			tickStats.tickStepped();
+		}
+		tell(tick);
+		if (tickStats != null) {
+			tickStats.tickDone(count);
+		}
+	}
+
+	/**
+	 * Sets where the time of each tick is recorded.
+	 *
+	 * @param stats
+	 *            The FrameStats to record ticks in, or null for none.
+	 */
+	synchronized void setStats(FrameStats stats) {
+		this.stats = stats;
+		if (stats != null) {
+			stats.setTickPeriod(tickMillis * 1000000L);
+		}
+	}
+
+	/**
+	 * Applies every queued change, in the order they were made. A change
+	 * that fails is reported and left out, and the others are still made.
+	 */
+	private void runCommands() {
+		Runnable command;
+		while ((command = commands.poll()) != null) {
+			try {
+				command.run();
+			} catch (RuntimeException e) {
+				report(e);
+			}
+		}
+	}
+
+	/**
+	 * Reports an exception to the handler of the current thread, as if it
+	 * had ended the thread, while the thread carries on.
+	 */
+	private static void report(Throwable e) {
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+	}
+
+	/**
+	 * Tells every Listener that a tick was published.
+	 */
+	private void tell(long tick) {
+		for (Listener listener : listeners) {
+			listener.ticked(tick);
+		}
+	}
+
+	/**
+	 * Tells the clock to advance one "tick."
+	 */
+	private class Strobe extends TimerTask {
+		/** True while ticks keep failing, so that is only reported once. */
+		private boolean failing;
+
+		@Override
+		public void run() {
+			// An exception would cancel the Timer, and the clock would stop
+			// for good, since start() does nothing while there is a Timer
+			try {
+				tick();
+				failing = false;
+			} catch (RuntimeException e) {
+				if (!failing) {
+					report(e);
+				}
+				failing = true;
+			}
+		}
+	}
+}
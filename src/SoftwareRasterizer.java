@@ -0,0 +1,336 @@
+package Kaleidoscope;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The SoftwareRasterizer fills the polygons of a frame into the pixels of a
+ * BufferedImage itself, without Java2D. The frame is cut into horizontal bands
+ * that are filled in parallel on a fork-join pool; each band fills the spans
+ * of every polygon that crosses it, in the order the polygons were added, so
+ * figures overlap exactly as they would if drawn one after another.
+ *
+ * Instead of clearing it, each band can fade the frame before toward the
+ * background, in place, so that the figures leave trails behind them.
+ *
+ * @author Martha Trevino
+ */
+class SoftwareRasterizer {
+
+	/** Height of a band, in pixels. */
+	static final int BAND_HEIGHT = 16;
+
+	private final ForkJoinPool pool;
+
+	private BufferedImage image;
+	private int[] pixels;
+	private int width;
+	private int height;
+
+	private PolygonBuffer polygons;
+	private int background;
+	/** How much of the frame before to keep, out of 256, or 0 to clear it. */
+	private int keep;
+
+	/** The polygons crossing band b are bandItems[bandStart[b]...]. */
+	private int bands;
+	private int[] bandStart = new int[1];
+	private int[] bandItems = new int[1024];
+	/** Scratch space for the edge crossings of a row, one per band. */
+	private float[][] crossings = new float[0][];
+
+	/**
+	 * Constructor, using the common fork-join pool.
+	 */
+	SoftwareRasterizer() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pool
+	 *            The pool the bands are filled on.
+	 */
+	SoftwareRasterizer(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Fills a frame.
+	 *
+	 * @param polygons
+	 *            The polygons to fill, bottom one first.
+	 * @param width
+	 *            Width of the frame
+	 * @param height
+	 *            Height of the frame
+	 * @param background
+	 *            Color of the pixels no polygon covers
+	 * @return The frame; the same image is reused for the next frame of the
+	 *         same size.
+	 */
+	BufferedImage render(PolygonBuffer polygons, int width, int height,
+			int background) {
+		return render(polygons, width, height, background, 0);
+	}
+
+	/**
+	 * Fills a frame over the frame before, faded toward the background.
+	 *
+	 * @param polygons
+	 *            The polygons to fill, bottom one first.
+	 * @param width
+	 *            Width of the frame
+	 * @param height
+	 *            Height of the frame
+	 * @param background
+	 *            Color the frame before fades toward
+	 * @param keep
+	 *            How much of the frame before to keep, out of 256; 0 clears
+	 *            it to the background and 256 keeps all of it
+	 * @return The frame; the same image is reused for the next frame of the
+	 *         same size.
+	 */
+	BufferedImage render(PolygonBuffer polygons, int width, int height,
+			int background, int keep) {
+		if (!ensureSize(Math.max(width, 1), Math.max(height, 1))) {
+			// There is no frame before
+			keep = 0;
+		}
+		this.polygons = polygons;
+		this.background = background;
+		this.keep = keep;
+		bin();
+		pool.invoke(new BandTask(0, bands));
+		this.polygons = null;
+		return image;
+	}
+
+	/**
+	 * @return The image the last frame was filled into, or null.
+	 */
+	BufferedImage getImage() {
+		return image;
+	}
+
+	/**
+	 * @return The pixels of the image the last frame was filled into.
+	 */
+	int[] getPixels() {
+		return pixels;
+	}
+
+	/**
+	 * @return True if the image of the frame before is the right size
+	 */
+	private boolean ensureSize(int w, int h) {
+		if (image != null && width == w && height == h) {
+			return true;
+		}
+		width = w;
+		height = h;
+		image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer())
+				.getData();
+		bands = (h + BAND_HEIGHT - 1) / BAND_HEIGHT;
+		bandStart = new int[bands + 1];
+		crossings = new float[bands][16];
+		return false;
+	}
+
+	/**
+	 * Sorts the polygons into the bands they cross, keeping their order.
+	 */
+	private void bin() {
+		Arrays.fill(bandStart, 0);
+		int longest = 0;
+		for (int p = 0; p < polygons.polygons; p++) {
+			if (isVisible(p)) {
+				int last = lastBand(p);
+				for (int b = firstBand(p); b <= last; b++) {
+					bandStart[b + 1]++;
+				}
+			}
+			longest = Math.max(longest, polygons.start[p + 1]
+					- polygons.start[p]);
+		}
+		for (int b = 0; b < bands; b++) {
+			bandStart[b + 1] += bandStart[b];
+		}
+		if (bandItems.length < bandStart[bands]) {
+			bandItems = new int[2 * bandStart[bands]];
+		}
+		if (crossings.length > 0 && crossings[0].length < longest) {
+			for (int b = 0; b < bands; b++) {
+				crossings[b] = new float[longest];
+			}
+		}
+		// bandStart[b] is used as the fill pointer, then shifted back
+		for (int p = 0; p < polygons.polygons; p++) {
+			if (isVisible(p)) {
+				int last = lastBand(p);
+				for (int b = firstBand(p); b <= last; b++) {
+					bandItems[bandStart[b]++] = p;
+				}
+			}
+		}
+		for (int b = bands; b > 0; b--) {
+			bandStart[b] = bandStart[b - 1];
+		}
+		bandStart[0] = 0;
+	}
+
+	private boolean isVisible(int p) {
+		return polygons.maxX[p] >= 0 && polygons.minX[p] < width
+				&& polygons.maxY[p] >= 0 && polygons.minY[p] < height;
+	}
+
+	private int firstBand(int p) {
+		return Math.max(polygons.minY[p], 0) / BAND_HEIGHT;
+	}
+
+	private int lastBand(int p) {
+		return Math.min(polygons.maxY[p], height - 1) / BAND_HEIGHT;
+	}
+
+	/**
+	 * Clears one band, or fades it, and fills every polygon that crosses it.
+	 *
+	 * @param band
+	 *            The band to fill
+	 */
+	private void fillBand(int band) {
+		int top = band * BAND_HEIGHT;
+		int bottom = Math.min(top + BAND_HEIGHT, height);
+		if (keep == 0) {
+			Arrays.fill(pixels, top * width, bottom * width, background);
+		} else if (keep < 256) {
+			fade(pixels, top * width, bottom * width, background, keep);
+		}
+		float[] cross = crossings[band];
+		for (int i = bandStart[band]; i < bandStart[band + 1]; i++) {
+			fillPolygon(bandItems[i], top, bottom, cross);
+		}
+	}
+
+	/**
+	 * Fills the rows of one polygon that lie in a band, one span at a time,
+	 * using the even-odd rule and sampling at pixel centers.
+	 *
+	 * @param p
+	 *            The polygon
+	 * @param top
+	 *            First row of the band
+	 * @param bottom
+	 *            Row after the last row of the band
+	 * @param cross
+	 *            Scratch space for the edge crossings of a row
+	 */
+	private void fillPolygon(int p, int top, int bottom, float[] cross) {
+		float[] xs = polygons.xs;
+		float[] ys = polygons.ys;
+		int first = polygons.start[p];
+		int last = polygons.start[p + 1];
+		int rgb = polygons.color[p];
+		int fromRow = Math.max(polygons.minY[p], top);
+		int toRow = Math.min(polygons.maxY[p] + 1, bottom);
+
+		for (int row = fromRow; row < toRow; row++) {
+			float sy = row + 0.5f;
+			int n = 0;
+			float px = xs[last - 1];
+			float py = ys[last - 1];
+			for (int v = first; v < last; v++) {
+				float cx = xs[v];
+				float cy = ys[v];
+				if ((py <= sy) != (cy <= sy)) {
+					float x = px + (sy - py) * (cx - px) / (cy - py);
+					// Insertion sort; there are only a few crossings
+					int k = n++;
+					while (k > 0 && cross[k - 1] > x) {
+						cross[k] = cross[k - 1];
+						k--;
+					}
+					cross[k] = x;
+				}
+				px = cx;
+				py = cy;
+			}
+			int offset = row * width;
+			for (int k = 0; k + 1 < n; k += 2) {
+				int from = Math.max((int) Math.ceil(cross[k] - 0.5f), 0);
+				int to = Math.min((int) Math.ceil(cross[k + 1] - 0.5f), width);
+				if (from < to) {
+					Arrays.fill(pixels, offset + from, offset + to, rgb);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fades a run of pixels toward a color. Each channel keeps keep / 256 of
+	 * its distance from the color, rounded toward the color, so every pixel
+	 * gets there in the end. The loop is kept simple enough for the JIT to
+	 * fade many pixels per instruction.
+	 *
+	 * @param pixels
+	 *            The pixels, as RGB
+	 * @param from
+	 *            The first pixel to fade
+	 * @param to
+	 *            The pixel after the last one to fade
+	 * @param background
+	 *            The color to fade toward
+	 * @param keep
+	 *            How much of the distance to keep, out of 256
+	 */
+	static void fade(int[] pixels, int from, int to, int background, int keep) {
+		int br = background >> 16 & 0xFF;
+		int bg = background >> 8 & 0xFF;
+		int bb = background & 0xFF;
+		for (int i = from; i < to; i++) {
+			int p = pixels[i];
+			int r = br + toward(((p >> 16 & 0xFF) - br) * keep);
+			int g = bg + toward(((p >> 8 & 0xFF) - bg) * keep);
+			int b = bb + toward(((p & 0xFF) - bb) * keep);
+			pixels[i] = r << 16 | g << 8 | b;
+		}
+	}
+
+	/**
+	 * @return t / 256, rounded toward zero
+	 */
+	private static int toward(int t) {
+		return t + (t >> 31 & 0xFF) >> 8;
+	}
+
+	/**
+	 * Fills a range of bands, splitting it in two until only one is left.
+	 */
+	@SuppressWarnings("serial")
+	private class BandTask extends RecursiveAction {
+		private final int from;
+		private final int to;
+
+		BandTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= 1) {
+				if (from < to) {
+					fillBand(from);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new BandTask(from, middle), new BandTask(middle, to));
+		}
+	}
+}
@@ -0,0 +1,470 @@
+package Kaleidoscope;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A SpriteCache keeps antialiased images of figures, so that a figure can be
+ * copied onto the picture instead of being filled from its outline every
+ * frame. A sprite is made for each shape kind, size, color and rotation that
+ * is drawn; figures that turn with their reflections have their turn rounded
+ * to one of ROTATIONS steps.
+ *
+ * The cache holds at most a given number of bytes of images. When it is full
+ * the sprites used least recently are thrown away first, but never one that
+ * has already been used in the frame being drawn: when a frame needs more
+ * sprites than fit, the ones that do not fit are filled from their outlines
+ * instead, so the rest are still found next frame. Sprites of colors that no
+ * figure has any more are thrown away as soon as the colors change.
+ *
+ * The sprites are found by a long key, in an open addressing table, and
+ * kept in the order they were used in by links of their own, so looking a
+ * sprite up allocates nothing.
+ *
+ * @author Martha Trevino
+ */
+class SpriteCache {
+
+	/** The number of turns a sprite can have, evenly spread over a circle. */
+	static final int ROTATIONS = 256;
+
+	/** The default size of the cache, in megabytes. */
+	static final long DEFAULT_MEGABYTES = Long.getLong(
+			"kaleidoscope.spriteCache", 32);
+
+	/**
+	 * One image of a figure, and where its top left corner is relative to the
+	 * position of the figure.
+	 */
+	static class Sprite {
+		final BufferedImage image;
+		final int left;
+		final int top;
+		final int rgb;
+		/** The last frame the sprite was used in. */
+		long used;
+		/** Its key(), and the sprites used just before and just after it. */
+		long key;
+		Sprite older;
+		Sprite newer;
+
+		Sprite(BufferedImage image, int left, int top, int rgb) {
+			this.image = image;
+			this.left = left;
+			this.top = top;
+			this.rgb = rgb;
+		}
+
+		/**
+		 * @return The memory taken by the image, in bytes
+		 */
+		long bytes() {
+			return 4L * image.getWidth() * image.getHeight();
+		}
+	}
+
+	/**
+	 * The sprites by key(), in a table of a power of two slots that is never
+	 * more than half full.
+	 */
+	private Sprite[] table = new Sprite[512];
+	private int count;
+	/** The sprite used least recently, and the one used last. */
+	private Sprite eldest;
+	private Sprite newest;
+	private long capacity;
+	private long bytes;
+
+	/** The outline of the last sprite looked up, around the figure position. */
+	private final Path2D.Float outline = new Path2D.Float();
+	private float minX;
+	private float minY;
+	private float maxX;
+	private float maxY;
+
+	/** The frame being drawn. */
+	private long frame;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long rejections;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *            The most bytes of images to keep
+	 */
+	SpriteCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Starts a new frame. Sprites used before now may be thrown away to make
+	 * room.
+	 */
+	void beginFrame() {
+		frame++;
+	}
+
+	/**
+	 * Finds the sprite of a figure, making it if need be.
+	 *
+	 * @param shape
+	 *            The shape kind of the figure
+	 * @param size
+	 *            Its size
+	 * @param rgb
+	 *            Its color
+	 * @param rotation
+	 *            Its turn, from 0 to ROTATIONS - 1; always 0 for shapes that
+	 *            stay upright
+	 * @return The sprite, or null if there is no room for it in this frame;
+	 *         then fill() draws the figure instead
+	 */
+	Sprite get(ShapeKind shape, int size, int rgb, int rotation) {
+		long key = key(shape, size, rgb, rotation);
+		Sprite sprite = find(key);
+		if (sprite != null) {
+			hits++;
+			sprite.used = frame;
+			unlink(sprite);
+			link(sprite);
+			return sprite;
+		}
+		misses++;
+		outline(shape, size, rotation);
+		// A pixel of room around the outline for the antialiased edge
+		int left = (int) Math.floor(minX) - 1;
+		int top = (int) Math.floor(minY) - 1;
+		int width = (int) Math.ceil(maxX) + 2 - left;
+		int height = (int) Math.ceil(maxY) + 2 - top;
+		if (!makeRoom(4L * width * height)) {
+			rejections++;
+			return null;
+		}
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_ARGB_PRE);
+		Graphics2D g = image.createGraphics();
+		smooth(g);
+		g.translate(-left, -top);
+		g.setColor(new Color(rgb));
+		g.fill(outline);
+		g.dispose();
+		sprite = new Sprite(image, left, top, rgb);
+		sprite.used = frame;
+		sprite.key = key;
+		add(sprite);
+		bytes += sprite.bytes();
+		return sprite;
+	}
+
+	/**
+	 * @return The slot of the table a key is looked for from
+	 */
+	private int home(long key) {
+		return (int) (key * 0x9E3779B97F4A7C15L >>> 40) & (table.length - 1);
+	}
+
+	/**
+	 * @return The sprite with a key, or null if there is none
+	 */
+	private Sprite find(long key) {
+		int mask = table.length - 1;
+		for (int slot = home(key); table[slot] != null; slot = slot + 1 & mask) {
+			if (table[slot].key == key) {
+				return table[slot];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Puts a new sprite in the table, as the one used last.
+	 */
+	private void add(Sprite sprite) {
+		if (2 * (count + 1) > table.length) {
+			Sprite[] old = table;
+			table = new Sprite[2 * old.length];
+			for (Sprite s : old) {
+				if (s != null) {
+					place(s);
+				}
+			}
+		}
+		place(sprite);
+		count++;
+		link(sprite);
+	}
+
+	/**
+	 * Puts a sprite in the first free slot from its home slot on.
+	 */
+	private void place(Sprite sprite) {
+		int mask = table.length - 1;
+		int slot = home(sprite.key);
+		while (table[slot] != null) {
+			slot = slot + 1 & mask;
+		}
+		table[slot] = sprite;
+	}
+
+	/**
+	 * Takes a sprite out of the table, moving back the sprites after it that
+	 * would no longer be found past the slot it leaves empty.
+	 */
+	private void remove(Sprite sprite) {
+		int mask = table.length - 1;
+		int hole = home(sprite.key);
+		while (table[hole] != sprite) {
+			hole = hole + 1 & mask;
+		}
+		table[hole] = null;
+		for (int slot = hole + 1 & mask; table[slot] != null; slot = slot + 1
+				& mask) {
+			// Move it into the hole if its home is not between the two
+			if ((slot - home(table[slot].key) & mask) >= (slot - hole & mask)) {
+				table[hole] = table[slot];
+				table[slot] = null;
+				hole = slot;
+			}
+		}
+		count--;
+		unlink(sprite);
+		bytes -= sprite.bytes();
+	}
+
+	/**
+	 * Makes a sprite the one used last.
+	 */
+	private void link(Sprite sprite) {
+		sprite.older = newest;
+		sprite.newer = null;
+		if (newest == null) {
+			eldest = sprite;
+		} else {
+			newest.newer = sprite;
+		}
+		newest = sprite;
+	}
+
+	/**
+	 * Takes a sprite out of the order of use.
+	 */
+	private void unlink(Sprite sprite) {
+		if (sprite.older == null) {
+			eldest = sprite.newer;
+		} else {
+			sprite.older.newer = sprite.newer;
+		}
+		if (sprite.newer == null) {
+			newest = sprite.older;
+		} else {
+			sprite.newer.older = sprite.older;
+		}
+		sprite.older = null;
+		sprite.newer = null;
+	}
+
+	/**
+	 * Fills the outline of the last figure get() found no room for, with
+	 * antialiasing.
+	 *
+	 * @param g
+	 *            The graphics to draw on, with the color of the figure
+	 * @param x
+	 *            Where the figure is
+	 * @param y
+	 *            Where the figure is
+	 */
+	void fill(Graphics2D g, int x, int y) {
+		Object antialiasing = g
+				.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+		Object strokeControl = g
+				.getRenderingHint(RenderingHints.KEY_STROKE_CONTROL);
+		smooth(g);
+		g.translate(x, y);
+		g.fill(outline);
+		g.translate(-x, -y);
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasing);
+		g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, strokeControl);
+	}
+
+	private static void smooth(Graphics2D g) {
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
+				RenderingHints.VALUE_STROKE_PURE);
+	}
+
+	/**
+	 * @return The key of a sprite: 5 bits of kind, 20 of size, 8 of rotation
+	 *         and 24 of color
+	 */
+	private static long key(ShapeKind shape, int size, int rgb, int rotation) {
+		return (long) shape.id << 52 | (long) (size & 0xFFFFF) << 32
+				| (long) rotation << 24 | rgb & 0xFFFFFF;
+	}
+
+	/**
+	 * Works out the outline of a figure, turned, around its position, and
+	 * its bounds.
+	 */
+	private void outline(ShapeKind shape, int size, int rotation) {
+		double angle = 2 * Math.PI * rotation / ROTATIONS;
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+		float[] xs = shape.xs;
+		float[] ys = shape.ys;
+		outline.reset();
+		minX = Float.MAX_VALUE;
+		minY = Float.MAX_VALUE;
+		maxX = -Float.MAX_VALUE;
+		maxY = -Float.MAX_VALUE;
+		for (int v = 0; v < xs.length; v++) {
+			// The same turn as View.getNewX() and getNewY()
+			float x = (float) (xs[v] * size * cos + ys[v] * size * sin);
+			float y = (float) (ys[v] * size * cos - xs[v] * size * sin);
+			if (v == 0) {
+				outline.moveTo(x, y);
+			} else {
+				outline.lineTo(x, y);
+			}
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+		}
+		outline.closePath();
+	}
+
+	/**
+	 * Throws away the sprites used least recently, but none used in this
+	 * frame, until there is room for a new one.
+	 *
+	 * @return True if there is room
+	 */
+	private boolean makeRoom(long need) {
+		while (bytes + need > capacity && eldest != null) {
+			if (eldest.used == frame) {
+				return false;
+			}
+			remove(eldest);
+			evictions++;
+		}
+		return bytes + need <= capacity;
+	}
+
+	/**
+	 * @param k
+	 *            A reflection
+	 * @param reflections
+	 *            The number of reflections
+	 * @return The nearest rotation of a sprite to the turn of reflection k
+	 */
+	static int rotation(int k, int reflections) {
+		return (int) (((long) 2 * k * ROTATIONS + reflections)
+				/ (2 * reflections) % ROTATIONS);
+	}
+
+	/**
+	 * Throws away the sprites of every color no figure has any more. This is
+	 * called when the colors of the figures change.
+	 *
+	 * @param rgb
+	 *            The colors of the figures
+	 * @param count
+	 *            The number of figures
+	 */
+	void retainColors(int[] rgb, int count) {
+		if (this.count == 0) {
+			return;
+		}
+		int[] used = Arrays.copyOf(rgb, count);
+		Arrays.sort(used);
+		Sprite sprite = eldest;
+		while (sprite != null) {
+			Sprite next = sprite.newer;
+			if (Arrays.binarySearch(used, sprite.rgb) < 0) {
+				remove(sprite);
+			}
+			sprite = next;
+		}
+	}
+
+	/**
+	 * Sets the most bytes of images to keep, throwing sprites away if there
+	 * are more already.
+	 *
+	 * @param capacity
+	 *            The most bytes of images to keep
+	 */
+	void setCapacity(long capacity) {
+		this.capacity = capacity;
+		while (bytes > capacity && eldest != null) {
+			remove(eldest);
+			evictions++;
+		}
+	}
+
+	/**
+	 * @return The number of sprites found in the cache
+	 */
+	long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of sprites that had to be made
+	 */
+	long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The number of sprites thrown away to make room
+	 */
+	long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return The number of figures filled because there was no room for
+	 *         their sprites
+	 */
+	long getRejections() {
+		return rejections;
+	}
+
+	/**
+	 * @return The number of sprites in the cache
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return The memory taken by the sprites, in bytes
+	 */
+	long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return One line about the cache, for the on-screen statistics
+	 */
+	String summary() {
+		long lookups = Math.max(hits + misses, 1);
+		return String.format(Locale.ROOT,
+				"sprites  %d (%.1f of %d MB), %.1f%% hits, %d evicted,"
+						+ " %d filled", count, bytes / 1048576.0,
+				capacity >> 20, 100.0 * hits / lookups, evictions,
+				rejections);
+	}
+}
@@ -0,0 +1,111 @@
+package Kaleidoscope;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The StateExchange hands FigureStates from the SimulationClock to the View
+ * without locking either of them. It holds four states: the one the clock is
+ * filling in, the one the View is drawing, the one the View drew before it,
+ * and the last one published, which is swapped with one of the others in a
+ * single atomic step. The clock never waits for a frame to finish and the
+ * View always gets the latest complete tick, never a mix of two, and can
+ * still look at the tick it had before to draw the figures in between.
+ *
+ * There must be a single thread publishing at a time, and a single thread
+ * taking at a time.
+ *
+ * @author Martha Trevino
+ */
+class StateExchange {
+
+	/** Set in the exchange slot when it holds a state not yet taken. */
+	private static final int FRESH = 4;
+
+	private final FigureState[] states = { new FigureState(),
+			new FigureState(), new FigureState(), new FigureState() };
+
+	/** The index of the last published state, and the FRESH bit. */
+	private final AtomicInteger exchange = new AtomicInteger(0);
+	/** The state being filled in, owned by the publisher. */
+	private int back = 1;
+	/** The state being drawn, and the one taken before, owned by the taker. */
+	private int front = 2;
+	private int previous = 3;
+
+	/** The time between two ticks, in nanoseconds. */
+	private volatile long period = SimulationClock.TICK_MILLIS * 1000000L;
+
+	/**
+	 * Copies the figures into the back state and publishes it. Called by the
+	 * SimulationClock at the end of a tick.
+	 *
+	 * @param figures
+	 *            The figures to publish
+	 * @param tick
+	 *            The tick they are at
+	 */
+	void publish(FigureStore figures, long tick) {
+		states[back].copyFrom(figures, tick);
+		swap();
+	}
+
+	/**
+	 * Reads a recorded tick into the back state and publishes it, in place of
+	 * the figures.
+	 *
+	 * @param recording
+	 *            The recording to play back
+	 * @param tick
+	 *            The tick to publish
+	 * @return False, publishing nothing, if the tick is not recorded
+	 */
+	boolean publish(Recording recording, long tick) {
+		if (!recording.read(tick, states[back])) {
+			return false;
+		}
+		swap();
+		return true;
+	}
+
+	/**
+	 * Stamps the back state and publishes it.
+	 */
+	private void swap() {
+		FigureState state = states[back];
+		state.published = System.nanoTime();
+		state.period = period;
+		back = exchange.getAndSet(back | FRESH) & ~FRESH;
+	}
+
+	/**
+	 * Sets the time between two ticks, stamped on every state published from
+	 * now on.
+	 *
+	 * @param nanos
+	 *            The time between two ticks, in nanoseconds
+	 */
+	void setPeriod(long nanos) {
+		period = nanos;
+	}
+
+	/**
+	 * @return The state of the last tick published. It stays the same, and
+	 *         is not written to, until the next call.
+	 */
+	FigureState take() {
+		if ((exchange.get() & FRESH) != 0) {
+			int taken = exchange.getAndSet(previous) & ~FRESH;
+			previous = front;
+			front = taken;
+		}
+		return states[front];
+	}
+
+	/**
+	 * @return The state taken before the one take() returned last. It is
+	 *         not written to until the next call of take() either.
+	 */
+	FigureState previous() {
+		return states[previous];
+	}
+}
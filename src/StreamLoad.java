@@ -0,0 +1,181 @@
+package Kaleidoscope;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The StreamLoad opens many MJPEG streams of a StreamServer at once, reads
+ * them for a while and reports the frames and bytes every client received,
+ * followed by the statistics of the server, so it can be seen that each
+ * configuration was only encoded once per frame however many clients
+ * watched it.
+ *
+ * <pre>
+ * java -cp classes Kaleidoscope.StreamLoad --clients 200 --seconds 20 --configs "8:triangle;12:ball,diamond"
+ * </pre>
+ *
+ * Configurations are separated by semicolons, each one the reflections and
+ * the shapes, and are shared out among the clients in turn.
+ *
+ * @author Martha Trevino
+ */
+public class StreamLoad {
+
+	String server = "http://localhost:8080";
+	int clients = 50;
+	int seconds = 10;
+	String[] configs = { "8:triangle" };
+
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private volatile long deadline;
+
+	/**
+	 * Puts load on a StreamServer.
+	 *
+	 * @param args
+	 *            Options, see usage().
+	 */
+	public static void main(String[] args) throws Exception {
+		StreamLoad load = new StreamLoad();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("--server")) {
+				load.server = value;
+			} else if (option.equals("--clients")) {
+				load.clients = Integer.parseInt(value);
+			} else if (option.equals("--seconds")) {
+				load.seconds = Integer.parseInt(value);
+			} else if (option.equals("--configs")) {
+				load.configs = value.split(";");
+			} else {
+				usage();
+				return;
+			}
+		}
+		if (args.length % 2 != 0) {
+			usage();
+			return;
+		}
+		load.run();
+	}
+
+	private static void usage() {
+		System.err.println("Options: --server http://host:port --clients N"
+				+ " --seconds N --configs \"8:triangle;12:ball,diamond\"");
+	}
+
+	/**
+	 * Opens every stream, reads them until the time is up and prints what
+	 * was received.
+	 */
+	public void run() throws IOException, InterruptedException {
+		ExecutorService threads = StreamServer.connectionThreads("Load client");
+		final CountDownLatch done = new CountDownLatch(clients);
+		deadline = System.nanoTime() + seconds * 1000000000L;
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			final String[] config = configs[c % configs.length].split(":");
+			threads.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						watch(URI.create(server + "/stream?reflections="
+								+ config[0] + "&shapes=" + config[1]).toURL());
+					} catch (IOException | IllegalArgumentException e) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		threads.shutdown();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf(Locale.ROOT,
+				"%d clients, %d failed: %.1f frames/s per client,"
+						+ " %.1f MB/s in all%n", clients, failures.get(),
+				frames.get() / elapsed / clients, bytes.get() / elapsed / 1e6);
+		System.out.print(read(URI.create(server + "/stats").toURL()));
+	}
+
+	/**
+	 * Reads one stream until the time is up, counting its frames.
+	 */
+	private void watch(URL url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url
+				.openConnection();
+		InputStream in = new BufferedInputStream(connection.getInputStream());
+		try {
+			while (System.nanoTime() < deadline) {
+				int length = -1;
+				String line;
+				// The boundary and the headers of a part, up to a blank line
+				while ((line = readLine(in)) != null) {
+					if (line.isEmpty()) {
+						if (length >= 0) {
+							break;
+						}
+					} else if (line.regionMatches(true, 0, "Content-Length:",
+							0, 15)) {
+						length = Integer.parseInt(line.substring(15).trim());
+					}
+				}
+				if (line == null) {
+					throw new IOException("Stream ended");
+				}
+				in.skipNBytes(length);
+				frames.incrementAndGet();
+				bytes.addAndGet(length);
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * @return One line of ASCII text, without its line end, or null at the
+	 *         end of the stream
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				return null;
+			}
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * @return The whole body at a URL, as text
+	 */
+	private static String read(URL url) throws IOException {
+		InputStream in = url.openStream();
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			in.transferTo(body);
+			return body.toString(StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,583 @@
+package Kaleidoscope;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The StreamServer runs one simulation, without a window, and streams it to
+ * any number of HTTP clients as MJPEG, which browsers show in a plain img
+ * tag.
+ *
+ * Every client picks its reflections and shapes in the URL. Each of those
+ * configurations is a Channel with its own View and its own kept frame
+ * image, drawn and encoded to JPEG once per tick on the render thread, no
+ * matter how many clients watch it. Clients only write the bytes of the
+ * newest frame; a slow client skips frames instead of holding up the others.
+ *
+ * <pre>
+ * java -cp classes Kaleidoscope.StreamServer --port 8080 --figures 200
+ * http://localhost:8080/stream?reflections=12&amp;shapes=ball,diamond
+ * </pre>
+ *
+ * @author Martha Trevino
+ */
+public class StreamServer implements SimulationClock.Listener {
+
+	/** Separates the JPEG frames in the multipart stream. */
+	private static final String BOUNDARY = "kaleidoscope";
+
+	/** The most reflections a client may ask for. */
+	static final int MAX_REFLECTIONS = 64;
+
+	/** Sets up the simulation and every View. */
+	final HeadlessRenderer setup = new HeadlessRenderer();
+
+	int port = 8080;
+	float quality = 0.8f;
+	int maxChannels = 16;
+
+	private SimulationClock clock;
+	private HttpServer server;
+	private ExecutorService connections;
+	private Thread renderThread;
+	private volatile boolean running;
+
+	/** One Channel per configuration watched, by reflections and shapes. */
+	private final ConcurrentHashMap<Integer, Channel> channels = new ConcurrentHashMap<Integer, Channel>();
+
+	/** Guards published. */
+	private final ReentrantLock tickLock = new ReentrantLock();
+	private final Condition ticked = tickLock.newCondition();
+	private long published = -1;
+
+	/**
+	 * Serves the kaleidoscope until the process is stopped.
+	 *
+	 * @param args
+	 *            Options, see usage().
+	 */
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		StreamServer streamer = new StreamServer();
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("--mirror")) {
+				streamer.setup.mirror = true;
+				continue;
+			}
+			if (option.equals("--raster")) {
+				streamer.setup.raster = true;
+				continue;
+			}
+			if (option.equals("--sprites")) {
+				streamer.setup.sprites = true;
+				continue;
+			}
+			if (option.equals("--indexed")) {
+				streamer.setup.indexed = true;
+				continue;
+			}
+			if (option.equals("--trails")) {
+				streamer.setup.trails = true;
+				continue;
+			}
+			if (option.equals("--collisions")) {
+				streamer.setup.collisions = true;
+				continue;
+			}
+			if (i + 1 == args.length) {
+				usage();
+				return;
+			}
+			String value = args[++i];
+			if (option.equals("--port")) {
+				streamer.port = Integer.parseInt(value);
+			} else if (option.equals("--quality")) {
+				streamer.quality = Float.parseFloat(value);
+			} else if (option.equals("--channels")) {
+				streamer.maxChannels = Integer.parseInt(value);
+			} else if (!streamer.setup.setOption(option, value)) {
+				usage();
+				return;
+			}
+		}
+		streamer.start();
+		System.out.printf("Streaming on http://localhost:%d/ (%s)%n",
+				streamer.port, virtualThreads() ? "virtual threads"
+						: "platform threads");
+	}
+
+	private static void usage() {
+		System.err.println("Options: --port N --quality 0..1 --channels N"
+				+ " --width W --height H --figures N --reflections N"
+				+ " --shapes ball,triangle,... --seed N --mirror --raster"
+				+ " --sprites --indexed --trails --collisions --budget MS");
+	}
+
+	/**
+	 * Starts the simulation, the render thread and the HTTP server.
+	 */
+	public void start() throws IOException {
+		running = true;
+		clock = setup.createClock();
+		clock.addListener(this);
+		renderThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				renderFrames();
+			}
+		}, "Kaleidoscope streamer");
+		renderThread.setDaemon(true);
+		renderThread.start();
+
+		connections = connectionThreads("Kaleidoscope client");
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/stream", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				stream(exchange);
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 200, "text/plain", statistics());
+			}
+		});
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 200, "text/html",
+						"<html><body style=\"margin:0;background:black\">"
+								+ "<img src=\"/stream?"
+								+ escape(exchange.getRequestURI()
+										.getRawQuery())
+								+ "\"></body></html>");
+			}
+		});
+		server.setExecutor(connections);
+		server.start();
+		port = server.getAddress().getPort();
+		clock.start();
+	}
+
+	/**
+	 * Stops serving. Open streams are closed.
+	 */
+	public void stop() {
+		running = false;
+		clock.pause();
+		server.stop(0);
+		renderThread.interrupt();
+		for (Channel channel : channels.values()) {
+			channel.close();
+		}
+		connections.shutdown();
+	}
+
+	/**
+	 * Wakes the render thread.
+	 */
+	@Override
+	public void ticked(long tick) {
+		tickLock.lock();
+		try {
+			published = tick;
+			ticked.signal();
+		} finally {
+			tickLock.unlock();
+		}
+	}
+
+	/**
+	 * Draws and encodes a frame of every Channel that has clients, once per
+	 * tick. Channels are only drawn here, one after the other, so this is
+	 * the only thread that takes figures from the StateExchange.
+	 */
+	private void renderFrames() {
+		long rendered = -1;
+		try {
+			while (running) {
+				tickLock.lock();
+				try {
+					while (published == rendered) {
+						ticked.await();
+					}
+					rendered = published;
+				} finally {
+					tickLock.unlock();
+				}
+				for (Iterator<Channel> i = channels.values().iterator(); i
+						.hasNext();) {
+					Channel channel = i.next();
+					if (channel.viewers.get() > 0) {
+						try {
+							channel.render();
+							continue;
+						} catch (IOException | RuntimeException e) {
+							// It would only fail again on every tick, so
+							// its clients are cut off; they may open it anew
+							System.err.println("Dropped reflections="
+									+ channel.reflections + " shapes="
+									+ Integer.toHexString(channel.shapeMask)
+									+ ": " + e);
+						}
+						synchronized (channels) {
+							i.remove();
+						}
+					} else {
+						synchronized (channels) {
+							if (channel.viewers.get() > 0 || !channel.idle()) {
+								continue;
+							}
+							i.remove();
+						}
+					}
+					channel.close();
+					channel.dispose();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+
+	/**
+	 * Streams one Channel to a client until it goes away.
+	 */
+	private void stream(HttpExchange exchange) throws IOException {
+		Channel channel;
+		try {
+			channel = channel(exchange.getRequestURI());
+		} catch (IllegalArgumentException e) {
+			send(exchange, 400, "text/plain", e.getMessage());
+			return;
+		}
+		if (channel == null) {
+			send(exchange, 503, "text/plain", "Too many configurations");
+			return;
+		}
+		try {
+			exchange.getResponseHeaders().set("Content-Type",
+					"multipart/x-mixed-replace; boundary=" + BOUNDARY);
+			exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+			exchange.sendResponseHeaders(200, 0);
+			OutputStream out = exchange.getResponseBody();
+			byte[] part = null;
+			while (running && (part = channel.next(part)) != null) {
+				out.write(part);
+				out.flush();
+			}
+		} catch (IOException e) {
+			// The client went away
+		} catch (InterruptedException e) {
+			// Stopped
+		} finally {
+			channel.viewers.decrementAndGet();
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Finds, or opens, the Channel asked for by the query of a URL, such as
+	 * "reflections=12&amp;shapes=ball,diamond", and counts one more client of
+	 * it. Missing values are taken from the options.
+	 *
+	 * @return The Channel, or null if there are too many already
+	 */
+	private Channel channel(URI uri) {
+		int reflections = setup.reflections;
+		int shapeMask = setup.shapeMask;
+		String query = uri.getQuery();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				int equals = pair.indexOf('=');
+				if (equals < 0) {
+					continue;
+				}
+				String name = pair.substring(0, equals);
+				String value = pair.substring(equals + 1);
+				if (name.equals("reflections")) {
+					try {
+						reflections = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException(
+								"Bad reflections: " + value);
+					}
+				} else if (name.equals("shapes")) {
+					shapeMask = HeadlessRenderer.parseShapes(value);
+				}
+			}
+		}
+		if (reflections < 1 || reflections > MAX_REFLECTIONS) {
+			throw new IllegalArgumentException("Reflections must be 1 to "
+					+ MAX_REFLECTIONS);
+		}
+		Integer key = Integer.valueOf(reflections << 16 | shapeMask);
+		synchronized (channels) {
+			Channel channel = channels.get(key);
+			if (channel == null) {
+				if (channels.size() == maxChannels) {
+					return null;
+				}
+				channel = new Channel(reflections, shapeMask);
+				channels.put(key, channel);
+			}
+			channel.viewers.incrementAndGet();
+			return channel;
+		}
+	}
+
+	/**
+	 * @return One line per Channel: its configuration, clients, frames and
+	 *         the average time to draw and to encode a frame
+	 */
+	String statistics() {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format("%-5s %-6s %8s %8s %9s %9s %9s%n", "refl",
+				"shapes", "viewers", "frames", "draw ms", "encode ms",
+				"kB/frame"));
+		for (Channel channel : channels.values()) {
+			long frames = Math.max(channel.frames, 1);
+			text.append(String.format("%-5d %-6s %8d %8d %9.2f %9.2f %9.1f%n",
+					channel.reflections,
+					Integer.toHexString(channel.shapeMask),
+					channel.viewers.get(), channel.frames,
+					channel.drawNanos / 1e6 / frames, channel.encodeNanos
+							/ 1e6 / frames, channel.bytes / 1024.0 / frames));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Sends a whole, short response.
+	 */
+	private static void send(HttpExchange exchange, int status, String type,
+			String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type",
+				type + "; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		exchange.close();
+	}
+
+	/**
+	 * @return The text, safe to put in an HTML attribute
+	 */
+	private static String escape(String text) {
+		if (text == null) {
+			return "";
+		}
+		return text.replace("&", "&amp;").replace("\"", "&quot;")
+				.replace("<", "&lt;");
+	}
+
+	/**
+	 * Makes the executor that runs one task per connection. Virtual threads
+	 * are used where the JDK has them (final in Java 21); otherwise every
+	 * connection gets a daemon platform thread from a cached pool.
+	 *
+	 * @param name
+	 *            The name of the platform threads
+	 * @return The executor
+	 */
+	static ExecutorService connectionThreads(final String name) {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			// Not there, or still a preview
+		} catch (UnsupportedOperationException e) {
+			// Preview not enabled
+		}
+		final AtomicInteger threads = new AtomicInteger();
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name + " "
+						+ threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return True if connectionThreads() makes virtual threads
+	 */
+	static boolean virtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return Runtime.version().feature() >= 21;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * One configuration of reflections and shapes, drawn and encoded once per
+	 * tick for all the clients watching it.
+	 */
+	private class Channel {
+
+		/** How long a Channel is kept without clients, in nanoseconds. */
+		private static final long IDLE_NANOS = 30000000000L;
+
+		final int reflections;
+		final int shapeMask;
+		final AtomicInteger viewers = new AtomicInteger();
+
+		private final View view;
+		/** Kept from frame to frame, so only what moved is drawn again. */
+		private final BufferedImage image;
+		private final Graphics2D graphics;
+		private final ImageWriter writer;
+		private final ImageWriteParam param;
+		private final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+		private boolean drawn;
+		private long lastViewed = System.nanoTime();
+
+		/** Guards frame. */
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition newFrame = lock.newCondition();
+		/** The newest frame, with its multipart headers, written as it is. */
+		private byte[] frame;
+		private boolean closed;
+
+		/** Only read for statistics(). */
+		volatile long frames;
+		volatile long drawNanos;
+		volatile long encodeNanos;
+		volatile long bytes;
+
+		Channel(int reflections, int shapeMask) {
+			this.reflections = reflections;
+			this.shapeMask = shapeMask;
+			view = setup.createView(clock);
+			view.setReflections(reflections);
+			view.setShapeMask(shapeMask);
+			image = new BufferedImage(setup.width, setup.height,
+					BufferedImage.TYPE_INT_RGB);
+			graphics = image.createGraphics();
+			writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+			param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+		}
+
+		/**
+		 * Draws and encodes the newest figures, and hands them to every
+		 * client. Only called on the render thread.
+		 */
+		void render() throws IOException {
+			long start = System.nanoTime();
+			view.renderFrame(graphics, drawn);
+			drawn = true;
+			long drawEnd = System.nanoTime();
+
+			jpeg.reset();
+			MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(
+					jpeg);
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), param);
+			stream.close();
+			ByteArrayOutputStream part = new ByteArrayOutputStream(
+					jpeg.size() + 100);
+			part.write(("--" + BOUNDARY
+					+ "\r\nContent-Type: image/jpeg\r\nContent-Length: "
+					+ jpeg.size() + "\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII));
+			jpeg.writeTo(part);
+			part.write('\r');
+			part.write('\n');
+			long end = System.nanoTime();
+
+			lock.lock();
+			try {
+				frame = part.toByteArray();
+				newFrame.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			lastViewed = end;
+			frames++;
+			drawNanos += drawEnd - start;
+			encodeNanos += end - drawEnd;
+			bytes += jpeg.size();
+		}
+
+		/**
+		 * Waits for a frame newer than the one a client has written.
+		 *
+		 * @param written
+		 *            The frame the client wrote last, or null
+		 * @return The newest frame, or null once the Channel is closed
+		 */
+		byte[] next(byte[] written) throws InterruptedException {
+			lock.lock();
+			try {
+				while (!closed && (frame == null || frame == written)) {
+					newFrame.await();
+				}
+				return closed ? null : frame;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return True if nobody has watched this Channel for a while
+		 */
+		boolean idle() {
+			return System.nanoTime() - lastViewed > IDLE_NANOS;
+		}
+
+		/**
+		 * Lets every client go.
+		 */
+		void close() {
+			lock.lock();
+			try {
+				closed = true;
+				newFrame.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Frees the graphics and the encoder. Only called on the render
+		 * thread.
+		 */
+		void dispose() {
+			graphics.dispose();
+			writer.dispose();
+		}
+	}
+}
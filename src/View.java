@@ -1,43 +1,257 @@
 package Kaleidoscope;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
-import java.util.ArrayList;
-import java.util.Observable;
-import java.util.Observer;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Toolkit;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.Arrays;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 /**
- * The View "observes" and displays what is going on in the Model. The Model
- * contains and updates the position of the figure to be displayed.
+ * The View listens to the SimulationClock and displays what is going on in the
+ * Models. The clock publishes a copy of every figure once per tick and tells
+ * the View; each frame draws the latest copy, so it always shows all the
+ * figures as they were at the end of one tick. With interpolation, frames
+ * drawn between ticks blend the last two copies instead.
  * 
  * @author David Matuszek
  * @author Theresa Breiner
  * @author Martha Trevino
  */
 @SuppressWarnings("serial")
-public class View extends JPanel implements Observer {
+public class View extends JPanel implements SimulationClock.Listener {
 
-	/** This is what we will be observing. */
-	ArrayList<Model> modelList = new ArrayList<Model>();
+	/** Where the figures we will be displaying are published. */
+	private final StateExchange exchange;
+	/** The figures of the frame being drawn. */
+	private FigureState figures = new FigureState();
 
-	final int TYPES = 5;
+	/** One Color per figure, rebuilt only when the figure colors change. */
+	private Color[] colors = new Color[0];
+	private int colorVersion = -1;
+
+	/** The reflections chosen, and those drawn in the frame being drawn. */
+	private volatile int chosenReflections = 8;
 	int reflections = 8;
-	boolean ball = false;
-	boolean rectangle = false;
-	boolean triangle = true;
-	boolean roundRect = false;
-	boolean diamond = false;
+	/**
+	 * One bit for each ShapeKind that should be drawn. This and the other
+	 * settings of how to draw are only changed while holding frameLock, so
+	 * a frame is drawn with the same settings from start to end.
+	 */
+	private int shapeMask = ShapeKind.TRIANGLE.mask();
+
+	/**
+	 * In sector mode only one angular sector is drawn, into sectorImage, which
+	 * is then stamped around the center once per reflection.
+	 */
+	private boolean sectors = false;
+	/** In mirror mode every other stamp of the sector is flipped over. */
+	private boolean mirror = false;
+	private BufferedImage sectorImage;
+	private Graphics2D sectorGraphics;
+	private final Arc2D.Double wedge = new Arc2D.Double();
+	private final Rectangle sectorBounds = new Rectangle();
+	private final AffineTransform flip = new AffineTransform();
+	private final AffineTransform stamp = new AffineTransform();
+	private int sectorWidth;
+	private int sectorHeight;
+	private int sectorReflections;
+	private boolean sectorMirror;
+	private static final AffineTransform IDENTITY = new AffineTransform();
+
+	/** The figure slots, sorted by color and then by shape. */
+	private int[] order = new int[0];
+	private long[] orderKeys = new long[0];
+	private int orderVersion = -1;
+	private int orderCount = -1;
+
+	/** The outlines of the reflected figures, as they are worked out. */
+	private final PolygonBuffer polygons = new PolygonBuffer();
+	/** All the reflections of one color and shape, filled as one path. */
+	private final Path2D.Float batch = new Path2D.Float(
+			Path2D.WIND_NON_ZERO, 4096);
+
+	/**
+	 * The runs of polygons in the buffer that share a color: run r ends before
+	 * polygon runEnd[r] and is filled with the color of figure runModel[r].
+	 */
+	private int[] runEnd = new int[64];
+	private int[] runModel = new int[64];
+	private int runs;
+
+	/**
+	 * When the plain Java2D picture is drawn on a surface that keeps the
+	 * frame before, such as the back buffer, only its dirty tiles are drawn
+	 * again.
+	 */
+	private final DirtyRegion dirty = new DirtyRegion();
+	/** True if the frame before was the plain picture, on a kept surface. */
+	private boolean dirtyValid;
+	private int dirtyVersion = -1;
+	private int dirtyMask = -1;
+	private int dirtyReflections = -1;
+	/** True if the last frame only drew its dirty tiles again. */
+	private boolean partial;
+	/** The plain picture, drawn here and copied to a kept surface. */
+	private BufferedImage dirtyImage;
+	/** The pixels of dirtyImage to clear, and then copy. */
+	private final Rectangle device = new Rectangle();
+
+	/** Above this part of the frame being dirty, all of it is drawn again. */
+	static final double MAX_DIRTY_COVERAGE = 0.35;
+
+	/**
+	 * In raster mode the SoftwareRasterizer fills the whole frame, on all
+	 * cores, instead of Java2D.
+	 */
+	private boolean raster = false;
+	private SoftwareRasterizer rasterizer;
+
+	/**
+	 * In trails mode the SoftwareRasterizer fades the frame before toward
+	 * the background instead of clearing it, so moving figures leave trails.
+	 */
+	private boolean trails = false;
+	/**
+	 * How much of the frame before is kept in trails mode, out of 256, for
+	 * every tick the figures have moved on since it was last faded. Trails
+	 * are then as long at any frame rate.
+	 */
+	static final int TRAIL_KEEP = 232;
+	/**
+	 * The least a fade takes off, out of 256. Each fade also rounds every
+	 * channel toward the background, so smaller fades are put off until the
+	 * frames add up to one this big.
+	 */
+	static final int TRAIL_MIN_FADE = 8;
+	/** Where the frame before was last faded, in ticks. */
+	private double fadedAt = Double.NaN;
+	/** Where the figures drawn in this frame are, in ticks. */
+	private double frameTicks;
+
+	/**
+	 * In sprite mode every reflected figure is copied from an antialiased
+	 * image in the SpriteCache instead of being filled from its outline.
+	 */
+	private boolean sprites = false;
+	private final SpriteCache spriteCache = new SpriteCache(
+			SpriteCache.DEFAULT_MEGABYTES << 20);
+	/** The sprite rotation nearest to the turn of each reflection. */
+	private int[] spriteRotations = new int[0];
+
+	/**
+	 * In indexed mode every figure has a palette slot of its own. The
+	 * outlines are filled with slots, into an IndexedFrame, only when the
+	 * figures move; new colors and hue cycling only change the palette.
+	 */
+	private boolean indexed = false;
+	private IndexedFrame indexedFrame;
+	/** True while outlines are added with the slot of their figure. */
+	private boolean slotColors;
+	/** True if the frame before was the indexed picture, on a kept surface. */
+	private boolean indexedValid;
+	/** What the IndexedFrame was filled from. */
+	private long indexedTick = -1;
+	private float indexedBetween;
+	private int indexedShapes;
+	private int indexedCount;
+	private int indexedMask;
+	private int indexedReflections;
+	private int indexedWidth;
+	private int indexedHeight;
+	/** What its palette was written from. */
+	private int indexedColors;
+	private float indexedPhase;
+	/** Turns of the color wheel per second, in indexed mode. */
+	private volatile double hueCycle;
+	private final long cycleStart = System.nanoTime();
+
+	/**
+	 * The cosine and sine of the turn of reflection k, k * 2pi / reflections,
+	 * worked out once whenever the number of reflections changes.
+	 */
+	private double[] rotationCos = new double[0];
+	private double[] rotationSin = new double[0];
+	private int rotations;
+
+	/** The reflections of the figure being drawn, from first to last. */
+	private int firstCopy;
+	private int lastCopy;
+
+	/**
+	 * In active mode a RenderLoop draws frames into an accelerated back
+	 * buffer and copies them to the screen, instead of waiting for repaint().
+	 */
+	boolean active = false;
+	private RenderLoop renderLoop;
+	private VolatileImage backBuffer;
+	/** Held while a frame is being drawn, so two threads never share one. */
+	private final Object frameLock = new Object();
+
+	/**
+	 * With interpolation, frames drawn actively between two ticks show the
+	 * figures part of the way from the tick before the last one to the last
+	 * one, as far as the time since it was published. The picture is then a
+	 * tick behind the simulation, but it moves at the rate of the display
+	 * instead of the rate of the ticks.
+	 */
+	private boolean interpolated = false;
+	/** The figures between two ticks. */
+	private final FigureState blended = new FigureState();
+
+	/**
+	 * The QualityGovernor, if there is one, lowers the resolution of the
+	 * picture and the reflections drawn when frames take too long. At a
+	 * lower resolution the picture is drawn into scaledImage, through a
+	 * transform, and scaled up.
+	 */
+	private volatile QualityGovernor governor;
+	private BufferedImage scaledImage;
+	/** The resolution and size of the frame before. */
+	private float frameScale = 1;
+	private int frameWidth;
+	private int frameHeight;
+
+	/** How many times in a row a frame may be lost before giving up. */
+	private static final int MAX_LOST_FRAMES = 10;
+
+	/** Where the time of each frame is recorded, or null. */
+	private FrameStats stats;
+	/** True to draw the statistics over the picture. */
+	private boolean hud = false;
+	private static final Font HUD_FONT = new Font(Font.MONOSPACED, Font.PLAIN,
+			12);
+	private static final Color HUD_BACKGROUND = new Color(0, 0, 0, 160);
+
+	/** The figures and reflected instances filled in the current frame. */
+	private int drawnFigures;
+	private int drawnInstances;
 
 	/**
 	 * Constructor.
 	 * 
-	 * @param models
-	 *            The ArrayList of Models whose working is to be displayed.
+	 * @param exchange
+	 *            Where the figures to be displayed are published.
 	 */
-	View(ArrayList<Model> models) {
-		this.modelList.addAll(models);
+	View(StateExchange exchange) {
+		this.exchange = exchange;
+		updateRotations();
 	}
 
 	/**
@@ -50,165 +264,968 @@ public class View extends JPanel implements Observer {
 	 */
 	@Override
 	public void paint(Graphics g) {
-		g.setColor(Color.CYAN);
-		g.fillRect(0, 0, getWidth(), getHeight());
-
-		for (int model = 0; model < modelList.size(); model++) {
-			Model currModel = modelList.get(model);
-			String currShape = currModel.getShapeType();
-
-			if (ball && currShape.equals("ball")) {
-				drawSymmShape(currModel, g);
-			} else if (rectangle && currShape.equals("rectangle")) {
-				drawSymmShape(currModel, g);
-			} else if (roundRect && currShape.equals("roundRect")) {
-				drawSymmShape(currModel, g);
-			} else if (triangle && currShape.equals("triangle")) {
-				drawTriangle(currModel, g);
-			} else if (diamond && currShape.equals("diamond")) {
-				drawDiamond(currModel, g);
-			}
+		VolatileImage shown = backBuffer;
+		if (active && shown != null && !shown.contentsLost()) {
+			g.drawImage(shown, 0, 0, null);
+			return;
 		}
+		renderFrame((Graphics2D) g, false);
 	}
 
 	/**
-	 * Draws all the necessary reflections of one given model - for balls,
-	 * rectangles, and round rectangles.
+	 * Draws one whole frame.
 	 * 
-	 * @param currModel
-	 *            The model to be drawn
 	 * @param g
-	 *            The graphics to draw the model on
+	 *            The Graphics on which to draw the frame.
+	 * @param kept
+	 *            True if g draws on the same surface as the frame before, and
+	 *            that surface still holds it, so that only what has changed
+	 *            needs to be drawn again.
+	 */
+	void renderFrame(Graphics2D g, boolean kept) {
+		synchronized (frameLock) {
+			FrameStats frameStats = stats;
+			if (frameStats != null) {
+				frameStats.beginFrame();
+			}
+			long start = System.nanoTime();
+			QualityGovernor quality = governor;
+			figures = takeFigures();
+			reflections = quality == null ? chosenReflections : quality
+					.reflections(chosenReflections);
+			drawnFigures = 0;
+			drawnInstances = 0;
+			partial = false;
+			updateColors();
+			updateRotations();
+			float scale = quality == null || getWidth() <= 0
+					|| getHeight() <= 0 ? 1 : quality.getScale();
+			Graphics2D target = g;
+			if (scale < 1) {
+				kept = updateScaled(scale);
+				target = scaledImage.createGraphics();
+				target.scale((double) frameWidth / getWidth(),
+						(double) frameHeight / getHeight());
+			} else {
+				kept = kept && frameScale == 1;
+				frameScale = 1;
+				frameWidth = getWidth();
+				frameHeight = getHeight();
+			}
+			boolean paletted = indexed && !trails && !sectors && !mirror
+					&& figures.count < IndexedFrame.MAX_SLOTS;
+			if (paletted) {
+				paintIndexed(target, kept && indexedValid && !hud);
+			} else if ((raster || trails) && !sectors && !mirror) {
+				if (rasterizer == null) {
+					rasterizer = new SoftwareRasterizer();
+				}
+				drawFigures(null, false);
+				scalePolygons();
+				target.drawImage(rasterizer.render(polygons, frameWidth,
+						frameHeight, Color.CYAN.getRGB(), trails ? trailKeep()
+								: 0), 0, 0, getWidth(), getHeight(), null);
+			} else {
+				if (sectors || mirror) {
+					target.setColor(Color.CYAN);
+					target.fillRect(0, 0, getWidth(), getHeight());
+					paintSectors(target);
+				} else if (sprites) {
+					target.setColor(Color.CYAN);
+					target.fillRect(0, 0, getWidth(), getHeight());
+					paintSprites(target);
+				} else {
+					paintDirty(target, kept && dirtyValid);
+				}
+			}
+			if (target != g) {
+				target.dispose();
+				Object interpolation = g
+						.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+						RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.drawImage(scaledImage, 0, 0, getWidth(), getHeight(), null);
+				if (interpolation != null) {
+					g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+							interpolation);
+				}
+			}
+			dirtyValid = kept && !paletted && !raster && !trails && !sectors
+					&& !mirror && !sprites;
+			indexedValid = kept && paletted;
+			if (quality != null) {
+				quality.frameDrawn(System.nanoTime() - start);
+			}
+			if (frameStats != null) {
+				frameStats.endFrame(drawnFigures, drawnInstances);
+				if (hud) {
+					String[] lines = frameStats.summary();
+					if (sprites && !paletted && !raster && !trails && !sectors
+							&& !mirror) {
+						lines = Arrays.copyOf(lines, lines.length + 1);
+						lines[lines.length - 1] = spriteCache.summary();
+					}
+					if (quality != null) {
+						lines = Arrays.copyOf(lines, lines.length + 1);
+						lines[lines.length - 1] = quality.summary();
+					}
+					paintHud(g, lines);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes sure the image the picture is drawn into at a lower resolution is
+	 * the right size.
+	 * 
+	 * @param scale
+	 *            The resolution, as a part of the size of the View
+	 * @return True if the image still holds the frame before
+	 */
+	private boolean updateScaled(float scale) {
+		int width = Math.max(Math.round(getWidth() * scale), 1);
+		int height = Math.max(Math.round(getHeight() * scale), 1);
+		boolean kept = scaledImage != null && frameScale == scale
+				&& scaledImage.getWidth() == width
+				&& scaledImage.getHeight() == height;
+		if (scaledImage == null || scaledImage.getWidth() != width
+				|| scaledImage.getHeight() != height) {
+			scaledImage = new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_RGB);
+		}
+		frameScale = scale;
+		frameWidth = width;
+		frameHeight = height;
+		return kept;
+	}
+
+	/**
+	 * Scales the outlines in the polygon buffer down to the resolution of the
+	 * frame, for the software rasterizer.
 	 */
-	public void drawSymmShape(Model currModel, Graphics g) {
-		g.setColor(currModel.getColor());
-		int x = currModel.getX();
-		int y = currModel.getY();
-		int size = currModel.FIGURE_SIZE;
+	private void scalePolygons() {
+		if (frameScale < 1) {
+			polygons.scale((float) frameWidth / getWidth());
+		}
+	}
 
-		double radius = getRadius(x, y);
-		double angle = getAngle(x, y);
+	/**
+	 * @return The figures to draw in this frame: the last tick published or,
+	 *         with interpolation, the figures between it and the tick before
+	 */
+	private FigureState takeFigures() {
+		FigureState latest = exchange.take();
+		frameTicks = latest.tick;
+		if (!interpolated || !active) {
+			return latest;
+		}
+		long elapsed = System.nanoTime() - latest.published;
+		if (elapsed >= latest.period || elapsed < 0) {
+			return latest;
+		}
+		float fraction = (float) elapsed / latest.period;
+		if (!blended.interpolate(exchange.previous(), latest, fraction)) {
+			return latest;
+		}
+		frameTicks = blended.tick + fraction;
+		return blended;
+	}
 
-		for (int n = 1; n <= reflections; n++) {
+	/**
+	 * Works out the fade of the frame before in trails mode, once per frame.
+	 * It is TRAIL_KEEP to the power of the ticks since the last fade, so a
+	 * frame drawn between ticks fades it only part of the way.
+	 *
+	 * @return How much of the frame before to keep, out of 256
+	 */
+	private int trailKeep() {
+		if (Double.isNaN(fadedAt) || frameTicks < fadedAt - 1) {
+			// The first frame with trails, or the ticks have started over
+			fadedAt = frameTicks - 1;
+		}
+		double ticks = frameTicks - fadedAt;
+		double perTick = TRAIL_KEEP / 256.0;
+		// Rounded up, so a fade never stands for more ticks than have gone by
+		int keep = (int) Math.ceil(256 * Math.pow(perTick,
+				Math.max(ticks, 0)));
+		if (keep > 256 - TRAIL_MIN_FADE) {
+			return 256;
+		}
+		// Move on only as many ticks as the rounded fade stands for
+		fadedAt = keep == 0 ? frameTicks : fadedAt + Math.log(keep / 256.0)
+				/ Math.log(perTick);
+		return keep;
+	}
+
+	/**
+	 * @return True if the last frame was drawn on a kept surface, and only
+	 *         its dirty tiles were drawn again
+	 */
+	boolean wasPartial() {
+		return partial;
+	}
+
+	/**
+	 * Draws the plain Java2D picture. If g still holds the frame before, only
+	 * the tiles where a reflected figure has moved, appeared or gone are
+	 * cleared and filled again, unless much of the frame is dirty, or the
+	 * size, colors, shapes or reflections have changed since the frame
+	 * before.
+	 * 
+	 * The tiles are not filled under a clip, as Java2D works out an edge that
+	 * crosses the border of a clip a little differently, and the picture
+	 * would come out a pixel off here and there. They are filled in the
+	 * dirtyImage instead, with nothing but its own edges to clip them, and
+	 * only their pixels are copied to g. An image is filled by the same code
+	 * as the dirtyImage, but the back buffer may not be, so whole frames
+	 * drawn on it go through the dirtyImage as well.
+	 * 
+	 * @param g
+	 *            The graphics to draw the picture on
+	 * @param kept
+	 *            True if g holds the frame before
+	 */
+	private void paintDirty(Graphics2D g, boolean kept) {
+		int width = getWidth();
+		int height = getHeight();
+		boolean copied = (kept || active) && g.getDeviceConfiguration()
+				.getDevice().getType() != GraphicsDevice.TYPE_IMAGE_BUFFER;
+		if (dirtyVersion != figures.styleVersion || dirtyMask != shapeMask
+				|| dirtyReflections != reflections) {
+			dirtyVersion = figures.styleVersion;
+			dirtyMask = shapeMask;
+			dirtyReflections = reflections;
+			kept = false;
+		}
+		drawFigures(null, false);
+		dirty.update(polygons, width, height, !kept);
 
-			x = getNewX(radius, angle, n);
-			y = getNewY(radius, angle, n);
+		partial = dirty.coverage() <= MAX_DIRTY_COVERAGE;
+		if (!partial && !copied) {
+			g.setColor(Color.CYAN);
+			g.fillRect(0, 0, width, height);
+			fillPolygons(g, 0);
+			return;
+		}
+		if (partial && dirty.isClean()) {
+			return;
+		}
+		int rectangles = partial ? dirty.rectangles() : 0;
+		AffineTransform transform = g.getTransform();
+		updateDirtyImage(transform, width, height);
+		Graphics2D frame = dirtyImage.createGraphics();
+		frame.setColor(Color.CYAN);
+		for (int r = 0; r < Math.max(rectangles, 1); r++) {
+			deviceBounds(transform, r, rectangles);
+			frame.fill(device);
+		}
+		frame.setTransform(transform);
+		fillPolygons(frame, rectangles);
+		frame.dispose();
+		g.setTransform(new AffineTransform());
+		for (int r = 0; r < Math.max(rectangles, 1); r++) {
+			deviceBounds(transform, r, rectangles);
+			int right = device.x + device.width;
+			int bottom = device.y + device.height;
+			g.drawImage(dirtyImage, device.x, device.y, right, bottom,
+					device.x, device.y, right, bottom, null);
+		}
+		g.setTransform(transform);
+	}
 
-			if (currModel.getShapeType().equals("ball")) {
-				g.fillOval(x - size / 2, y
-						- size / 2, size, size);
+	/**
+	 * Fills the polygons one color at a time, either all of them or only
+	 * those near the rectangles of the DirtyRegion.
+	 * 
+	 * @param g
+	 *            The graphics to fill them on
+	 * @param rectangles
+	 *            The number of rectangles found by the DirtyRegion, or 0 to
+	 *            fill every polygon
+	 */
+	private void fillPolygons(Graphics2D g, int rectangles) {
+		int p = 0;
+		for (int run = 0; run < runs; run++) {
+			batch.reset();
+			for (; p < runEnd[run]; p++) {
+				boolean near = rectangles == 0;
+				for (int r = 0; r < rectangles && !near; r++) {
+					near = dirty.overlaps(polygons, p, r);
+				}
+				if (near) {
+					polygons.appendTo(batch, p);
+				}
 			}
+			g.setColor(colors[runModel[run]]);
+			g.fill(batch);
+		}
+	}
+
+	/**
+	 * Makes sure the dirtyImage covers the View as g draws it, in the pixels
+	 * of the surface under g.
+	 */
+	private void updateDirtyImage(AffineTransform transform, int width,
+			int height) {
+		int deviceWidth = Math.max((int) Math.ceil(width
+				* transform.getScaleX() + transform.getTranslateX()), 1);
+		int deviceHeight = Math.max((int) Math.ceil(height
+				* transform.getScaleY() + transform.getTranslateY()), 1);
+		if (dirtyImage == null || dirtyImage.getWidth() != deviceWidth
+				|| dirtyImage.getHeight() != deviceHeight) {
+			dirtyImage = new BufferedImage(deviceWidth, deviceHeight,
+					BufferedImage.TYPE_INT_RGB);
+		}
+	}
 
-			else if (currModel.getShapeType().equals("rectangle")) {
-				g.fillRect(x - size / 2, y
-						- size / 2, size, size);
+	/**
+	 * Sets device to the pixels of the surface whose centers lie in a
+	 * rectangle of the DirtyRegion, or to all of the dirtyImage if there are
+	 * none.
+	 */
+	private void deviceBounds(AffineTransform transform, int r, int rectangles) {
+		int imageWidth = dirtyImage.getWidth();
+		int imageHeight = dirtyImage.getHeight();
+		if (rectangles == 0) {
+			device.setBounds(0, 0, imageWidth, imageHeight);
+			return;
+		}
+		double scaleX = transform.getScaleX();
+		double scaleY = transform.getScaleY();
+		double translateX = transform.getTranslateX() - 0.5;
+		double translateY = transform.getTranslateY() - 0.5;
+		int x = dirty.rectX[r];
+		int y = dirty.rectY[r];
+		int left = Math.max((int) Math.ceil(x * scaleX + translateX), 0);
+		int top = Math.max((int) Math.ceil(y * scaleY + translateY), 0);
+		int right = Math.min((int) Math.ceil((x + dirty.rectWidth[r])
+				* scaleX + translateX), imageWidth);
+		int bottom = Math.min((int) Math.ceil((y + dirty.rectHeight[r])
+				* scaleY + translateY), imageHeight);
+		device.setBounds(left, top, right - left, bottom - top);
+	}
+
+	/**
+	 * Draws the indexed picture. The outlines are only filled again if the
+	 * figures have moved or changed shape since the last indexed frame, and
+	 * the palette is only written again if their colors have changed or are
+	 * cycling.
+	 * 
+	 * @param g
+	 *            The graphics to draw the picture on
+	 * @param kept
+	 *            True if g holds the frame before, so nothing needs to be
+	 *            drawn if nothing has changed
+	 */
+	private void paintIndexed(Graphics2D g, boolean kept) {
+		int width = frameWidth;
+		int height = frameHeight;
+		if (indexedFrame == null) {
+			indexedFrame = new IndexedFrame();
+		}
+		// Only changes of color keep this the same
+		int shapes = figures.styleVersion - figures.colorVersion;
+		boolean moved = indexedTick != figures.tick
+				|| indexedBetween != figures.between
+				|| indexedShapes != shapes || indexedCount != figures.count
+				|| indexedMask != shapeMask
+				|| indexedReflections != reflections || indexedWidth != width
+				|| indexedHeight != height;
+		if (moved) {
+			slotColors = true;
+			drawFigures(null, false);
+			slotColors = false;
+			scalePolygons();
+			indexedFrame.rasterize(polygons, width, height, figures.count + 1);
+			indexedTick = figures.tick;
+			indexedBetween = figures.between;
+			indexedShapes = shapes;
+			indexedCount = figures.count;
+			indexedMask = shapeMask;
+			indexedReflections = reflections;
+			indexedWidth = width;
+			indexedHeight = height;
+		}
+
+		double cycle = hueCycle;
+		float phase = cycle == 0 ? 0 : (float) ((System.nanoTime() - cycleStart)
+				* 1e-9 * cycle % 1);
+		if (moved || indexedColors != figures.colorVersion
+				|| indexedPhase != phase) {
+			int[] palette = indexedFrame.palette();
+			palette[0] = Color.CYAN.getRGB();
+			for (int i = 0; i < figures.count; i++) {
+				palette[i + 1] = phase == 0 ? figures.rgb[i] : FigureStore
+						.rgb((figures.hue[i] + phase) % 1);
 			}
+			indexedFrame.paletteChanged();
+			indexedColors = figures.colorVersion;
+			indexedPhase = phase;
+		} else if (kept) {
+			return;
+		}
+		g.drawImage(indexedFrame.image(), 0, 0, getWidth(), getHeight(), null);
+	}
 
-			else if (currModel.getShapeType().equals("roundRect")) {
-				g.fillRoundRect(x  - size / 2, y
-						- size / 2, size, size, 20, 20);
+	/**
+	 * Copies a sprite for every reflection of every figure that is turned on,
+	 * in the same order as the outlines are filled, so figures overlap in
+	 * the same way.
+	 * 
+	 * @param g
+	 *            The graphics to draw the figures on
+	 */
+	private void paintSprites(Graphics2D g) {
+		updateOrder();
+		spriteCache.beginFrame();
+		for (int i = 0; i < figures.count; i++) {
+			int model = order[i];
+			byte kind = figures.kind[model];
+			if ((shapeMask & 1 << kind) == 0) {
+				continue;
+			}
+			ShapeKind shape = ShapeKind.get(kind);
+			int size = figures.size[model];
+			int rgb = figures.rgb[model];
+			int x = figures.x[model];
+			int y = figures.y[model];
+			drawnFigures++;
+			drawnInstances += reflections;
+			SpriteCache.Sprite sprite = shape.turns ? null : spriteCache.get(
+					shape, size, rgb, 0);
+			g.setColor(colors[model]);
+			for (int k = 0; k < reflections; k++) {
+				if (shape.turns) {
+					sprite = spriteCache.get(shape, size, rgb,
+							spriteRotations[k]);
+				}
+				if (sprite != null) {
+					g.drawImage(sprite.image, getNewX(x, y, k) + sprite.left,
+							getNewY(x, y, k) + sprite.top, null);
+				} else {
+					// No room for it this frame
+					spriteCache.fill(g, getNewX(x, y, k), getNewY(x, y, k));
+				}
 			}
 		}
 	}
 
 	/**
-	 * Draws all the necessary reflections of the given model, which has a
-	 * triangle shape.
+	 * Works out the outlines of every reflected figure that is turned on,
+	 * without drawing them.
+	 * 
+	 * @return The number of outlines
+	 */
+	int reflectFigures() {
+		synchronized (frameLock) {
+			figures = exchange.take();
+			reflections = chosenReflections;
+			updateRotations();
+			drawFigures(null, false);
+			return polygons.polygons;
+		}
+	}
+
+	/**
+	 * Draws the statistics in the top left corner, over the picture. This is
+	 * not counted as part of the frame.
 	 * 
-	 * @param model
-	 *            The model to be drawn
 	 * @param g
-	 *            The graphics to draw the model on
+	 *            The graphics to draw on
+	 * @param lines
+	 *            The lines of text to show
 	 */
-	public void drawTriangle(Model model, Graphics g) {
-		g.setColor(model.getColor());
-		int size = model.FIGURE_SIZE;
+	private void paintHud(Graphics2D g, String[] lines) {
+		g.setFont(HUD_FONT);
+		FontMetrics metrics = g.getFontMetrics();
+		int width = 0;
+		for (String line : lines) {
+			width = Math.max(width, metrics.stringWidth(line));
+		}
+		int lineHeight = metrics.getHeight();
+		g.setColor(HUD_BACKGROUND);
+		g.fillRect(4, 4, width + 8, lines.length * lineHeight + 6);
+		dirty.invalidate(4, 4, width + 8, lines.length * lineHeight + 6);
+		g.setColor(Color.WHITE);
+		for (int i = 0; i < lines.length; i++) {
+			g.drawString(lines[i], 8, 7 + i * lineHeight + metrics.getAscent());
+		}
+	}
 
-		int x = model.getX();
-		int y = model.getY();
+	/**
+	 * Draws one frame into the back buffer and copies it to the screen. This
+	 * is called by the RenderLoop, on its own thread.
+	 * 
+	 * @return False if active rendering does not work here, and the View
+	 *         should go back to being repainted by Swing.
+	 */
+	boolean renderActiveFrame() {
+		int width = getWidth();
+		int height = getHeight();
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		if (gc == null || width <= 0 || height <= 0) {
+			return true; // Not on screen yet
+		}
+		for (int lost = 0; lost < MAX_LOST_FRAMES; lost++) {
+			VolatileImage buffer = backBuffer;
+			int state = buffer == null ? VolatileImage.IMAGE_INCOMPATIBLE
+					: buffer.validate(gc);
+			if (buffer == null || buffer.getWidth() != width
+					|| buffer.getHeight() != height
+					|| state == VolatileImage.IMAGE_INCOMPATIBLE) {
+				if (buffer != null) {
+					buffer.flush();
+				}
+				buffer = createVolatileImage(width, height);
+				if (buffer == null) {
+					return false;
+				}
+				state = VolatileImage.IMAGE_RESTORED;
+			}
+			Graphics2D bg = buffer.createGraphics();
+			try {
+				renderFrame(bg, state == VolatileImage.IMAGE_OK
+						&& buffer == backBuffer);
+			} finally {
+				bg.dispose();
+			}
+			backBuffer = buffer;
 
-		int x1 = x + size;
-		int y1 = y + size / 2;
-		int x2 = x + size / 2;
-		int y2 = y + size;
+			Graphics sg = getGraphics();
+			if (sg == null) {
+				return true; // Not showing any more
+			}
+			try {
+				sg.drawImage(buffer, 0, 0, null);
+			} finally {
+				sg.dispose();
+			}
+			Toolkit.getDefaultToolkit().sync();
+			if (!buffer.contentsLost()) {
+				return true;
+			}
+		}
+		return false;
+	}
 
-		double radius = getRadius(x, y);
-		double angle = getAngle(x, y);
+	/**
+	 * Turns active rendering on or off. Active rendering is never used
+	 * without a screen.
+	 * 
+	 * @param tf
+	 *            True to draw from a dedicated render thread, false to be
+	 *            repainted by Swing.
+	 */
+	public void setActive(boolean tf) {
+		active = tf && !GraphicsEnvironment.isHeadless();
+		if (renderLoop == null) {
+			renderLoop = new RenderLoop(this);
+		}
+		if (active && isDisplayable()) {
+			renderLoop.start();
+		} else {
+			renderLoop.stop();
+			backBuffer = null;
+			if (stats != null) {
+				stats.setFrameBudget(0);
+			}
+			repaint();
+		}
+	}
 
-		double radius1 = getRadius(x1, y1);
-		double radius2 = getRadius(x2, y2);
+	/**
+	 * @return True if frames are drawn by a dedicated render thread.
+	 */
+	public boolean isActive() {
+		return active;
+	}
 
-		double angle1 = getAngle(x1, y1);
-		double angle2 = getAngle(x2, y2);
+	/**
+	 * Called by the RenderLoop when it cannot draw actively; goes back to
+	 * being repainted by Swing.
+	 */
+	void activeRenderingFailed() {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				setActive(false);
+				firePropertyChange("active", true, false);
+			}
+		});
+	}
 
-		for (int n = 1; n <= reflections; n++) {
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		if (active) {
+			renderLoop.start();
+		}
+	}
 
-			x = getNewX(radius, angle, n);
-			y = getNewY(radius, angle, n);
+	@Override
+	public void removeNotify() {
+		if (renderLoop != null) {
+			renderLoop.stop();
+		}
+		super.removeNotify();
+	}
 
-			x1 = getNewX(radius1, angle1, n);
-			y1 = getNewY(radius1, angle1, n);
+	/**
+	 * Draws every figure that is turned on. All the reflections of all the
+	 * figures that share a color and a shape are gathered into one path and
+	 * filled at once.
+	 * 
+	 * @param g
+	 *            The graphics to draw the figures on, or null to leave all
+	 *            the outlines in the polygon buffer instead
+	 * @param sectorOnly
+	 *            True to draw only the reflections that can reach the first
+	 *            sector, false to draw all of them
+	 */
+	private void drawFigures(Graphics2D g, boolean sectorOnly) {
+		updateOrder();
+		polygons.reset();
+		runs = 0;
+		int count = figures.count;
+		int first = 0;
+		while (first < count) {
+			int model = order[first];
+			int rgb = figures.rgb[model];
+			byte kind = figures.kind[model];
+			int last = first + 1;
+			while (last < count && figures.rgb[order[last]] == rgb
+					&& figures.kind[order[last]] == kind) {
+				last++;
+			}
+			if ((shapeMask & 1 << kind) != 0) {
+				ShapeKind shape = ShapeKind.get(kind);
+				drawnFigures += last - first;
+				if (shape.turns) {
+					for (int i = first; i < last; i++) {
+						appendTurning(order[i], shape, sectorOnly);
+					}
+				} else {
+					for (int i = first; i < last; i++) {
+						appendUpright(order[i], shape, sectorOnly);
+					}
+				}
+				if (g != null) {
+					batch.reset();
+					polygons.appendTo(batch);
+					polygons.reset();
+					g.setColor(colors[model]);
+					g.fill(batch);
+				} else {
+					addRun(model);
+				}
+			}
+			first = last;
+		}
+	}
 
-			x2 = getNewX(radius2, angle2, n);
-			y2 = getNewY(radius2, angle2, n);
+	/**
+	 * Ends a run of polygons that share a color, after the last polygon in
+	 * the buffer.
+	 * 
+	 * @param model
+	 *            The slot of a figure with the color of the run
+	 */
+	private void addRun(int model) {
+		if (runs == runEnd.length) {
+			runEnd = Arrays.copyOf(runEnd, 2 * runs);
+			runModel = Arrays.copyOf(runModel, 2 * runs);
+		}
+		runEnd[runs] = polygons.polygons;
+		runModel[runs] = model;
+		runs++;
+	}
 
-			g.fillPolygon(new int[] { x, x1, x2 }, new int[] { y, y1, y2 }, 3);
+	/**
+	 * Sorts the figure slots by a scrambled color and by shape, so that
+	 * figures that can be filled together are next to each other. This only
+	 * happens when colors or shapes change.
+	 */
+	private void updateOrder() {
+		int count = figures.count;
+		if (orderVersion == figures.styleVersion && orderCount == count) {
+			return;
+		}
+		if (order.length < count) {
+			order = new int[figures.rgb.length];
+			orderKeys = new long[figures.rgb.length];
+		}
+		for (int i = 0; i < count; i++) {
+			// Scramble the colors, one to one, or the brightest ones would
+			// always be filled last, on top of the others
+			long scrambled = figures.rgb[i] * 0x9E3779B1 & 0xFFFFFF;
+			orderKeys[i] = scrambled << 33 | (long) figures.kind[i] << 28 | i;
 		}
+		Arrays.sort(orderKeys, 0, count);
+		for (int i = 0; i < count; i++) {
+			order[i] = (int) (orderKeys[i] & 0xFFFFFFF);
+		}
+		orderVersion = figures.styleVersion;
+		orderCount = count;
+	}
 
+	/**
+	 * Works out which reflections of a figure to draw, from firstCopy to
+	 * lastCopy.
+	 * 
+	 * @param model
+	 *            The slot of the figure
+	 * @param shape
+	 *            Its shape kind
+	 * @param sectorOnly
+	 *            True for only the reflections that can reach the first
+	 *            sector, false for all of them
+	 */
+	private void selectCopies(int model, ShapeKind shape, boolean sectorOnly) {
+		firstCopy = 1;
+		lastCopy = reflections;
+		if (sectorOnly) {
+			int reach = sectorReach(model, shape);
+			if (reach < reflections) {
+				int copy = sectorCopy(model);
+				firstCopy = copy - reach;
+				lastCopy = copy + reach;
+			}
+		}
 	}
 
 	/**
-	 * Draws all the necessary reflections of the given model, which has a
-	 * diamond shape.
+	 * Adds the reflections of one figure whose outline stays upright, such as
+	 * a ball or a rectangle, to the polygon buffer. Only its position is
+	 * reflected.
 	 * 
 	 * @param model
-	 *            The model to be drawn
-	 * @param g
-	 *            The graphics to draw the model on
+	 *            The slot of the figure
+	 * @param shape
+	 *            Its shape kind
+	 * @param sectorOnly
+	 *            True to add only the reflections that can reach the first
+	 *            sector, false to add all of them
 	 */
-	public void drawDiamond(Model model, Graphics g) {
-		g.setColor(model.getColor());
-		int size = model.FIGURE_SIZE;
+	private void appendUpright(int model, ShapeKind shape, boolean sectorOnly) {
+		selectCopies(model, shape, sectorOnly);
+		float[] xs = shape.xs;
+		float[] ys = shape.ys;
+		int size = figures.size[model];
+		int rgb = slotColors ? model + 1 : figures.rgb[model];
 
-		int x = model.getX();
-		int y = model.getY();
+		int fx = figures.x[model];
+		int fy = figures.y[model];
+		drawnInstances += lastCopy - firstCopy + 1;
 
-		int x1 = x + size;
-		int y1 = y + size / 2;
-		int x2 = x + size / 2;
-		int y2 = y + size;
-		int x3 = x + 2 * size;
-		int y3 = y + 2 * size;
+		for (int n = firstCopy; n <= lastCopy; n++) {
+			int k = rotation(n);
+			int x = getNewX(fx, fy, k);
+			int y = getNewY(fx, fy, k);
 
-		double radius = getRadius(x, y);
-		double angle = getAngle(x, y);
+			polygons.begin(rgb);
+			for (int v = 0; v < xs.length; v++) {
+				polygons.add(x + xs[v] * size, y + ys[v] * size);
+			}
+			polygons.end();
+		}
+	}
 
-		double radius1 = getRadius(x1, y1);
-		double radius2 = getRadius(x2, y2);
-		double radius3 = getRadius(x3, y3);
+	/**
+	 * Adds the reflections of one figure whose outline turns with each
+	 * reflection, such as a triangle or a diamond, to the polygon buffer.
+	 * Every vertex is reflected.
+	 * 
+	 * @param model
+	 *            The slot of the figure
+	 * @param shape
+	 *            Its shape kind
+	 * @param sectorOnly
+	 *            True to add only the reflections that can reach the first
+	 *            sector, false to add all of them
+	 */
+	private void appendTurning(int model, ShapeKind shape, boolean sectorOnly) {
+		selectCopies(model, shape, sectorOnly);
+		float[] xs = shape.xs;
+		float[] ys = shape.ys;
+		int size = figures.size[model];
+		int rgb = slotColors ? model + 1 : figures.rgb[model];
+		int x = figures.x[model];
+		int y = figures.y[model];
+		drawnInstances += lastCopy - firstCopy + 1;
 
-		double angle1 = getAngle(x1, y1);
-		double angle2 = getAngle(x2, y2);
-		double angle3 = getAngle(x3, y3);
+		for (int n = firstCopy; n <= lastCopy; n++) {
+			int k = rotation(n);
+			polygons.begin(rgb);
+			for (int v = 0; v < xs.length; v++) {
+				double vx = x + xs[v] * size;
+				double vy = y + ys[v] * size;
+				polygons.add(getNewX(vx, vy, k), getNewY(vx, vy, k));
+			}
+			polygons.end();
+		}
+	}
+
+	/**
+	 * Draws a single sector of the picture into an offscreen image, then
+	 * stamps it around the center once per reflection. In mirror mode the
+	 * sector is half as wide and every other stamp is its mirror image.
+	 * 
+	 * @param g
+	 *            The graphics to draw the picture on
+	 */
+	private void paintSectors(Graphics2D g) {
+		int width = getWidth();
+		int height = getHeight();
+		updateSector(width, height);
 
-		for (int n = 1; n <= reflections; n++) {
+		Graphics2D sg = sectorGraphics;
+		sg.setTransform(IDENTITY);
+		sg.setClip(null);
+		sg.setComposite(AlphaComposite.Clear);
+		sg.fillRect(0, 0, sectorBounds.width, sectorBounds.height);
+		sg.setComposite(AlphaComposite.SrcOver);
+		sg.translate(-sectorBounds.x, -sectorBounds.y);
+		sg.clip(wedge);
+		sg.translate(-width / 2, -height / 2);
+		drawFigures(sg, true);
+
+		AffineTransform base = g.getTransform();
+		Shape clip = g.getClip();
+		double sector = 2 * Math.PI / reflections;
+		for (int n = 0; n < reflections; n++) {
+			stampSector(g, base, clip, n * sector, false);
+			if (mirror) {
+				stampSector(g, base, clip, n * sector, true);
+			}
+		}
+		g.setTransform(base);
+		g.setClip(clip);
+	}
 
-			x = getNewX(radius, angle, n);
-			y = getNewY(radius, angle, n);
+	/**
+	 * Works out the outline of the sector and makes sure the sector image
+	 * fits it. This only does any work when the size of the View, the number
+	 * of reflections or the mirror mode change.
+	 * 
+	 * @param width
+	 *            Width of the View
+	 * @param height
+	 *            Height of the View
+	 */
+	private void updateSector(int width, int height) {
+		if (sectorGraphics != null && sectorWidth == width
+				&& sectorHeight == height && sectorReflections == reflections
+				&& sectorMirror == mirror) {
+			return;
+		}
+		double sector = 2 * Math.PI / reflections;
+		double radius = Math.hypot(width / 2, height / 2) + 2;
+		// Widen the wedge by about a pixel on each side to hide the seams
+		double seam = 1.5 / radius;
+		double extent = (mirror ? sector / 2 : sector) + 2 * seam;
+		wedge.setArc(-radius, -radius, 2 * radius, 2 * radius,
+				Math.toDegrees(seam), -Math.toDegrees(extent), Arc2D.PIE);
+		sectorBounds.setBounds(wedge.getBounds());
+		flip.setTransform(Math.cos(sector), Math.sin(sector),
+				Math.sin(sector), -Math.cos(sector), 0, 0);
 
-			x1 = getNewX(radius1, angle1, n);
-			y1 = getNewY(radius1, angle1, n);
+		if (sectorImage == null
+				|| sectorImage.getWidth() != sectorBounds.width
+				|| sectorImage.getHeight() != sectorBounds.height) {
+			if (sectorGraphics != null) {
+				sectorGraphics.dispose();
+			}
+			sectorImage = new BufferedImage(sectorBounds.width,
+					sectorBounds.height, BufferedImage.TYPE_INT_ARGB);
+			sectorGraphics = sectorImage.createGraphics();
+		}
+		sectorWidth = width;
+		sectorHeight = height;
+		sectorReflections = reflections;
+		sectorMirror = mirror;
+	}
 
-			x2 = getNewX(radius2, angle2, n);
-			y2 = getNewY(radius2, angle2, n);
+	/**
+	 * Draws the sector image once, turned around the center.
+	 * 
+	 * @param g
+	 *            The graphics to draw the sector on
+	 * @param base
+	 *            The transform of g before any stamping
+	 * @param clip
+	 *            The clip of g before any stamping
+	 * @param angle
+	 *            How far to turn the sector
+	 * @param flipped
+	 *            True to mirror the sector before turning it
+	 */
+	private void stampSector(Graphics2D g, AffineTransform base, Shape clip,
+			double angle, boolean flipped) {
+		stamp.setTransform(base);
+		stamp.translate(getWidth() / 2, getHeight() / 2);
+		stamp.rotate(angle);
+		if (flipped) {
+			stamp.concatenate(flip);
+		}
+		g.setTransform(base);
+		g.setClip(clip);
+		g.setTransform(stamp);
+		g.clip(wedge);
+		g.drawImage(sectorImage, sectorBounds.x, sectorBounds.y, null);
+	}
 
-			x3 = getNewX(radius3, angle3, n);
-			y3 = getNewY(radius3, angle3, n);
+	/**
+	 * @param model
+	 *            The slot of a figure
+	 * @return The reflection of the figure whose position falls in the first
+	 *         sector, the one that starts at the positive X axis
+	 */
+	private int sectorCopy(int model) {
+		double sector = 2 * Math.PI / reflections;
+		double angle = Math.atan2(figures.y[model], figures.x[model]);
+		if (angle < 0) {
+			angle += 2 * Math.PI;
+		}
+		return (int) (angle / sector);
+	}
 
-			g.fillPolygon(new int[] { x, x1, x3, x2 }, new int[] { y, y1, y3,
-					y2 }, 4);
+	/**
+	 * @param model
+	 *            The slot of a figure
+	 * @param shape
+	 *            Its shape kind
+	 * @return How many reflections on each side of sectorCopy(model) can
+	 *         still overlap the first sector
+	 */
+	private int sectorReach(int model, ShapeKind shape) {
+		double sector = 2 * Math.PI / reflections;
+		double distance = getRadius(figures.x[model], figures.y[model]);
+		double reach = shape.reach * figures.size[model] + 2;
+		if (distance <= reach) {
+			return reflections;
 		}
+		return (int) Math.ceil(Math.asin(reach / distance) / sector) + 1;
+	}
 
+	/**
+	 * Makes sure there is an up to date Color for every figure.
+	 */
+	private void updateColors() {
+		if (colorVersion == figures.styleVersion
+				&& colors.length >= figures.count) {
+			return;
+		}
+		if (colors.length < figures.count) {
+			colors = new Color[figures.rgb.length];
+		}
+		for (int i = 0; i < figures.count; i++) {
+			if (colors[i] == null || colors[i].getRGB() != figures.rgb[i]) {
+				colors[i] = new Color(figures.rgb[i]);
+			}
+		}
+		spriteCache.retainColors(figures.rgb, figures.count);
+		colorVersion = figures.styleVersion;
 	}
 
 	/**
@@ -221,59 +1238,85 @@ public class View extends JPanel implements Observer {
 	 *            Y coordinate
 	 * @return radius
 	 */
-	private double getRadius(int x, int y) {
-		return Math.pow(x * x + y * y, 0.5);
+	private double getRadius(double x, double y) {
+		return Math.sqrt(x * x + y * y);
 	}
 
 	/**
-	 * Method to change from Cartesian coordinates to polar coordinates, this
-	 * method returns the angle
-	 * 
-	 * @param x
-	 *            X coordinate
-	 * @param y
-	 *            Y coordinate
-	 * @return angle
+	 * Works out the rotation table for the current number of reflections.
+	 * This only does any work when the number of reflections changes.
 	 */
-	private double getAngle(int x, int y) {
-		double angle = Math.atan((double) (x) / y);
-		if (y < 0) {
-			angle += Math.PI;
+	void updateRotations() {
+		if (rotations == reflections) {
+			return;
+		}
+		double[] cos = new double[reflections];
+		double[] sin = new double[reflections];
+		double angleOffset = 2 * Math.PI / reflections;
+		for (int k = 0; k < reflections; k++) {
+			cos[k] = Math.cos(k * angleOffset);
+			sin[k] = Math.sin(k * angleOffset);
+			// Quarter turns are exact, so they never round a pixel off
+			if (Math.abs(cos[k]) < 1e-12) {
+				cos[k] = 0;
+			}
+			if (Math.abs(sin[k]) < 1e-12) {
+				sin[k] = 0;
+			}
+		}
+		int[] turns = new int[reflections];
+		for (int k = 0; k < reflections; k++) {
+			turns[k] = SpriteCache.rotation(k, reflections);
 		}
-		return angle;
+		rotationCos = cos;
+		rotationSin = sin;
+		spriteRotations = turns;
+		rotations = reflections;
 	}
 
 	/**
-	 * Method to get the X coordinate from polar coordinates with an offset for
-	 * the given 'n'th reflection
-	 * 
-	 * @param radius
-	 * @param angle
 	 * @param n
-	 *            Represents which number reflection we are looking for out of
-	 *            total reflections
+	 *            Represents which number reflection we are looking for,
+	 *            possibly outside 0 to reflections - 1
+	 * @return The entry of the rotation table that turns a point to the
+	 *         'n'th reflection
+	 */
+	int rotation(int n) {
+		int k = n % rotations;
+		return k < 0 ? k + rotations : k;
+	}
+
+	/**
+	 * Method to get the X coordinate of a point turned to one of the
+	 * reflections, around the center of the View
+	 * 
+	 * @param x
+	 *            X coordinate
+	 * @param y
+	 *            Y coordinate
+	 * @param k
+	 *            The entry of the rotation table for the reflection
 	 * @return x
 	 */
-	private int getNewX(double radius, double angle, int n) {
-		double angleOffset = 2 * Math.PI / reflections;
-		return (int) (radius * Math.sin(angle + n * angleOffset)) + getWidth()
+	int getNewX(double x, double y, int k) {
+		return (int) (x * rotationCos[k] + y * rotationSin[k]) + getWidth()
 				/ 2;
 	}
 
 	/**
-	 * Method to get the Y coordinate from polar coordinates with an offset for
-	 * the given 'n'th reflection
+	 * Method to get the Y coordinate of a point turned to one of the
+	 * reflections, around the center of the View
 	 * 
-	 * @param radius
-	 * @param angle
-	 * @param n
-	 *            Represents which number reflection we are looking for out of
-	 *            total reflections
+	 * @param x
+	 *            X coordinate
+	 * @param y
+	 *            Y coordinate
+	 * @param k
+	 *            The entry of the rotation table for the reflection
 	 * @return y
 	 */
-	private int getNewY(double radius, double angle, int n) {
-		double angleOffset = 2 * Math.PI / reflections;
-		return (int) (radius * Math.cos(angle + n * angleOffset)) + getHeight()
+	int getNewY(double x, double y, int k) {
+		return (int) (y * rotationCos[k] - x * rotationSin[k]) + getHeight()
 				/ 2;
 	}
 
@@ -284,71 +1327,212 @@ public class View extends JPanel implements Observer {
 	 *            Number of reflections to be drawn
 	 */
 	public void setReflections(int ref) {
-		reflections = ref;
+		chosenReflections = ref;
+	}
+
+	/**
+	 * Sets the QualityGovernor that may lower the quality of the picture to
+	 * hold a frame budget.
+	 * 
+	 * @param quality
+	 *            The governor, or null to always draw at full quality
+	 */
+	void setGovernor(QualityGovernor quality) {
+		governor = quality;
 	}
 
 	/**
-	 * Turns ball drawing on or off
+	 * Turns the sector renderer on or off. It draws a single sector and
+	 * stamps it around the center, instead of drawing every reflection of
+	 * every figure.
 	 * 
 	 * @param tf
-	 *            True if balls should be drawn, false if not
+	 *            True to draw by sectors, false to draw every reflection
 	 */
-	public void setBall(boolean tf) {
-		ball = tf;
+	public void setSectors(boolean tf) {
+		synchronized (frameLock) {
+			sectors = tf;
+		}
 	}
 
 	/**
-	 * Turns rectangle drawing on or off
+	 * Turns the software rasterizer on or off. It fills the frame itself, in
+	 * horizontal bands on all cores, instead of asking Java2D to. The sector
+	 * renderer and mirror symmetry still draw with Java2D.
 	 * 
 	 * @param tf
-	 *            True if rectangles should be drawn, false if not
+	 *            True to fill in software, false to fill with Java2D
 	 */
-	public void setRectangle(boolean tf) {
-		rectangle = tf;
+	public void setRaster(boolean tf) {
+		synchronized (frameLock) {
+			raster = tf;
+		}
 	}
 
 	/**
-	 * Turns triangle drawing on or off
+	 * Turns sprite mode on or off. Each reflected figure is then copied from
+	 * an antialiased image made once and kept in the SpriteCache. The sector
+	 * renderer, mirror symmetry and the software rasterizer still fill
+	 * outlines.
 	 * 
 	 * @param tf
-	 *            True if triangles should be drawn, false if not
+	 *            True to copy sprites, false to fill outlines
 	 */
-	public void setTriangle(boolean tf) {
-		triangle = tf;
+	public void setSprites(boolean tf) {
+		synchronized (frameLock) {
+			sprites = tf;
+		}
 	}
 
 	/**
-	 * Turns round rectangle drawing on or off
+	 * Turns trails on or off. With trails the software rasterizer fades the
+	 * frame before toward the background instead of clearing it. The sector
+	 * renderer and mirror symmetry do not leave trails.
 	 * 
 	 * @param tf
-	 *            True if round rectangles should be drawn, false if not
+	 *            True to leave trails, false to clear every frame
 	 */
-	public void setRoundRect(boolean tf) {
-		roundRect = tf;
+	public void setTrails(boolean tf) {
+		synchronized (frameLock) {
+			trails = tf;
+		}
 	}
 
 	/**
-	 * Turns diamond drawing on or off
+	 * Turns indexed mode on or off. The figures are then filled with palette
+	 * slots by the software rasterizer, and new colors only change the
+	 * palette. It is not used with the sector renderer or mirror symmetry, or
+	 * for 65536 figures or more.
 	 * 
 	 * @param tf
-	 *            True if diamonds should be drawn, false if not
+	 *            True to draw through a palette, false to draw colors
 	 */
-	public void setDiamond(boolean tf) {
-		diamond = tf;
+	public void setIndexed(boolean tf) {
+		synchronized (frameLock) {
+			indexed = tf;
+		}
 	}
 
 	/**
-	 * When an Observer notifies Observers (this View is an Observer), this is
-	 * the method that gets called.
+	 * Cycles the colors of every figure around the color wheel, in indexed
+	 * mode, without drawing any figure again.
 	 * 
-	 * @param obs
-	 *            Holds a reference to the object being observed.
-	 * @param arg
-	 *            If notifyObservers is given a parameter, it is received here.
-	 * @see java.util.Observer#update(java.util.Observable, java.lang.Object)
+	 * @param turnsPerSecond
+	 *            How fast to turn the hues, or 0 to show the figures' own
+	 *            colors
+	 */
+	public void setHueCycle(double turnsPerSecond) {
+		hueCycle = turnsPerSecond;
+	}
+
+	/**
+	 * @return The sprites used in sprite mode, and their hit and miss counts.
+	 *         Only to be used while no frame is being drawn.
+	 */
+	SpriteCache getSpriteCache() {
+		return spriteCache;
+	}
+
+	/**
+	 * Turns mirror symmetry on or off. With mirror symmetry every other
+	 * sector is flipped over, as in a real kaleidoscope; it always uses the
+	 * sector renderer.
+	 * 
+	 * @param tf
+	 *            True for mirror symmetry, false for rotations only
+	 */
+	public void setMirror(boolean tf) {
+		synchronized (frameLock) {
+			mirror = tf;
+		}
+	}
+
+	/**
+	 * Turns interpolation on or off. It only makes a difference with active
+	 * rendering, which draws frames at the rate of the display; repainted
+	 * by Swing, the View draws once per tick anyway.
+	 * 
+	 * @param tf
+	 *            True to draw the figures between ticks, false to draw the
+	 *            last tick published
+	 */
+	public void setInterpolated(boolean tf) {
+		synchronized (frameLock) {
+			interpolated = tf;
+		}
+	}
+
+	/**
+	 * Sets where the time of each frame is recorded.
+	 * 
+	 * @param stats
+	 *            The FrameStats to record frames in, or null for none
+	 */
+	void setStats(FrameStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @return The FrameStats frames are recorded in, or null.
+	 */
+	FrameStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Turns the on-screen statistics on or off. They are only shown if the
+	 * View has a FrameStats to record frames in.
+	 * 
+	 * @param tf
+	 *            True to show the statistics over the picture
+	 */
+	public void setHud(boolean tf) {
+		synchronized (frameLock) {
+			hud = tf;
+		}
+	}
+
+	/**
+	 * Turns the drawing of one kind of shape on or off
+	 * 
+	 * @param kind
+	 *            The kind of shape
+	 * @param tf
+	 *            True if shapes of that kind should be drawn, false if not
+	 */
+	public void setShown(ShapeKind kind, boolean tf) {
+		synchronized (frameLock) {
+			if (tf) {
+				shapeMask |= kind.mask();
+			} else {
+				shapeMask &= ~kind.mask();
+			}
+		}
+	}
+
+	/**
+	 * Sets all the kinds of shape to draw at once.
+	 * 
+	 * @param mask
+	 *            One bit for each ShapeKind that should be drawn
+	 */
+	void setShapeMask(int mask) {
+		synchronized (frameLock) {
+			shapeMask = mask;
+		}
+	}
+
+	/**
+	 * When the SimulationClock has published a tick, this is the method that
+	 * gets called, on the thread that ticked.
+	 * 
+	 * @param tick
+	 *            The tick that was published.
 	 */
 	@Override
-	public void update(Observable obs, Object arg) {
-		repaint();
+	public void ticked(long tick) {
+		if (!active) {
+			repaint();
+		}
 	}
-}
\ No newline at end of file
+}